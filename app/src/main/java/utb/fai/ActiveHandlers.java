@@ -1,117 +1,667 @@
 package utb.fai;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Registry of named users and rooms. There is no global lock: a room's member
+ * list is an immutable snapshot replaced inside ConcurrentHashMap.compute, so
+ * only that room is locked while it changes and broadcasts read it without
+ * locking. A user's own rooms, a sorted array of room ids, are swapped the
+ * same way with a CAS.
+ * <p>
+ * Members are kept sorted by connection id, so a message to several rooms
+ * reaches everyone once by merging the rooms' arrays, without building a set
+ * of recipients.
+ */
 public class ActiveHandlers {
+    final ServerConfig config;
+    final Metrics metrics = new Metrics();
+    final CommandTable commands = Commands.defaults();
+    // Ids for the binary protocol; users only get one while binary clients are connected to need it
+    final Interner userIds = new Interner();
+    final Interner roomIds = new Interner();
+    final AtomicInteger binaryClients = new AtomicInteger();
+    final Compressor.Budget compressBudget;
+    final Admission admission;
+    final BufferPool buffers;
+    // Set at startup when room history, the offline store and clustering are enabled
+    History history;
+    OfflineStore offline;
+    Cluster cluster;
+    // Set at startup in the room-sharded mode, rooms are then only changed and read by their shard
+    RoomShards shards;
+    // Set at startup when any connection timeout or session resumption is configured
+    TimingWheel timers;
+    Sessions sessions;
+
     private ConcurrentHashMap<String, SocketHandler> activeHandlersMap = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, HashSet<SocketHandler>> rooms = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    private static final AtomicReferenceFieldUpdater<SocketHandler, int[]> USER_ROOMS =
+        AtomicReferenceFieldUpdater.newUpdater(SocketHandler.class, int[].class, "userRooms");
+
+    public ActiveHandlers() {
+        this(new ServerConfig());
+    }
+
+    public ActiveHandlers(ServerConfig config) {
+        this.config = config;
+        this.compressBudget = new Compressor.Budget(config);
+        this.admission = new Admission(config, metrics);
+        this.buffers = new BufferPool(config, metrics);
+    }
 
-    synchronized void broadcastToGroups(SocketHandler sender, String message) {
+    static final class Room {
+        final String name;
+        // Sorted by SocketHandler.connectionId
+        volatile SocketHandler[] members;
+        // Messages posted to the room and their size, for the busiest rooms in Stats
+        final LongAdder messages = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        Room(String name, SocketHandler first) {
+            this.name = name;
+            this.members = new SocketHandler[] { first };
+        }
+    }
+
+    void broadcastToGroups(SocketHandler sender, String message) {
+        broadcastToGroups(sender, Frame.of(message));
+    }
+
+    void broadcastToGroups(SocketHandler sender, Frame frame) {
         if (sender.userName == null || sender.userName.isEmpty()) {
             return;
         }
 
-        HashSet<SocketHandler> recipients = new HashSet<>();
-        for (String room : sender.userRooms) {
-            HashSet<SocketHandler> roomMembers = rooms.get(room);
-            if (roomMembers != null) {
-                recipients.addAll(roomMembers);
+        int[] senderRooms = sender.userRooms;
+        if (shards != null) {
+            if (senderRooms.length > 0) {
+                shards.publish(sender, senderRooms, frame);
+            }
+            if (cluster != null) {
+                cluster.forward(senderRooms, frame);
+            }
+            return;
+        }
+        if (senderRooms.length == 1) {
+            broadcastToRoom(sender, senderRooms, rooms.get(roomIds.name(senderRooms[0])), frame);
+            return;
+        }
+
+        // Only the sender's own thread broadcasts for it, so its scratch arrays are free to use
+        Merge merge = sender.merge;
+        if (merge == null) {
+            merge = sender.merge = new Merge();
+        }
+        merge.reset(senderRooms.length);
+        for (int id : senderRooms) {
+            Room room = rooms.get(roomIds.name(id));
+            if (room != null) {
+                posted(room, frame);
+                merge.add(room.members);
+            }
+        }
+        metrics.fanout.record(merge.offer(this, sender, frame));
+        if (cluster != null) {
+            cluster.forward(senderRooms, frame);
+        }
+    }
+
+    /** Members of several rooms, merged by connection id so everyone comes up once. */
+    static final class Merge {
+        private SocketHandler[][] members = new SocketHandler[4][];
+        private int[] next = new int[4];
+        private int count;
+
+        void reset(int rooms) {
+            if (members.length < rooms) {
+                members = new SocketHandler[rooms][];
+                next = new int[rooms];
+            }
+            count = 0;
+        }
+
+        void add(SocketHandler[] roomMembers) {
+            members[count] = roomMembers;
+            next[count++] = 0;
+        }
+
+        /** Offers the frame to each member but the sender, returns how many; the snapshots are let go. */
+        int offer(ActiveHandlers handlers, SocketHandler sender, Frame frame) {
+            int fanout = 0;
+            while (true) {
+                SocketHandler lowest = null;
+                for (int i = 0; i < count; i++) {
+                    SocketHandler[] room = members[i];
+                    if (next[i] < room.length) {
+                        SocketHandler candidate = room[next[i]];
+                        if (lowest == null || candidate.connectionId < lowest.connectionId) {
+                            lowest = candidate;
+                        }
+                    }
+                }
+                if (lowest == null) {
+                    break;
+                }
+                for (int i = 0; i < count; i++) {
+                    if (next[i] < members[i].length && members[i][next[i]] == lowest) {
+                        next[i]++;
+                    }
+                }
+                if (lowest != sender) {
+                    handlers.offer(lowest, frame);
+                    fanout++;
+                }
+            }
+            Arrays.fill(members, 0, count, null);
+            return fanout;
+        }
+    }
+
+    /** A message to one of the sender's rooms only. */
+    void broadcastToRoom(SocketHandler sender, String roomName, Frame frame) {
+        int id = roomIds.find(roomName);
+        if (id == 0 || sender.userName == null || Arrays.binarySearch(sender.userRooms, id) < 0) {
+            return;
+        }
+        int[] roomId = { id };
+        if (shards != null) {
+            shards.publish(sender, roomId, frame);
+            if (cluster != null) {
+                cluster.forward(roomId, frame);
+            }
+        } else {
+            broadcastToRoom(sender, roomId, rooms.get(roomName), frame);
+        }
+    }
+
+    private void broadcastToRoom(SocketHandler sender, int[] roomId, Room room, Frame frame) {
+        // Single room, the member snapshot is already free of duplicates
+        int fanout = 0;
+        if (room != null) {
+            posted(room, frame);
+            for (SocketHandler handler : room.members) {
+                if (handler != sender) {
+                    offer(handler, frame);
+                    fanout++;
+                }
             }
         }
-        
-        recipients.remove(sender);
-        
-        for (SocketHandler handler : recipients) {
-            if (handler.userName != null) {
-                if (!handler.messages.offer(message)) {
-                    System.err.printf("Client %s message queue is full, dropping the message!\n", 
-                        handler.clientID);
+        metrics.fanout.record(fanout);
+        if (cluster != null) {
+            cluster.forward(roomId, frame);
+        }
+    }
+
+    /** A broadcast another node forwarded; delivered to the members here, once each. */
+    void deliverFromPeer(String[] roomNames, Frame frame) {
+        if (shards != null) {
+            // Rooms without an id have no members here
+            int[] ids = new int[roomNames.length];
+            int n = 0;
+            for (String roomName : roomNames) {
+                int id = roomIds.find(roomName);
+                if (id != 0) {
+                    ids[n++] = id;
                 }
             }
+            if (n > 0) {
+                shards.publish(null, Arrays.copyOf(ids, n), frame);
+            }
+            return;
         }
+        if (roomNames.length == 1) {
+            Room room = rooms.get(roomNames[0]);
+            if (room != null) {
+                posted(room, frame);
+                for (SocketHandler handler : room.members) {
+                    offer(handler, frame);
+                }
+            }
+            return;
+        }
+
+        Merge merge = new Merge();
+        merge.reset(roomNames.length);
+        for (String roomName : roomNames) {
+            Room room = rooms.get(roomName);
+            if (room != null) {
+                posted(room, frame);
+                merge.add(room.members);
+            }
+        }
+        merge.offer(this, null, frame);
+    }
+
+    Room room(String name) {
+        return rooms.get(name);
     }
 
-    synchronized boolean sendPrivate(String targetName, String message, SocketHandler sender) {
+    void posted(Room room, Frame frame) {
+        room.messages.increment();
+        room.bytes.add(frame.length());
+        if (history != null) {
+            history.append(room.name, frame.text());
+        }
+    }
+
+    void offer(SocketHandler handler, Frame frame) {
+        if (handler.userName != null) {
+            // Overflow is counted in metrics according to the client's queue policy
+            handler.deliver(frame, OutboundQueue.Lane.ROOM);
+        }
+    }
+
+    boolean sendPrivate(String targetName, String message, SocketHandler sender) {
+        return sendPrivate(targetName, Frame.of(message), sender);
+    }
+
+    boolean sendPrivate(String targetName, Frame message, SocketHandler sender) {
         if (sender.userName == null || sender.userName.isEmpty()) {
             return false;
         }
 
         SocketHandler target = activeHandlersMap.get(targetName);
-        if (target == null) {
-            return false;
+        if (target == null && cluster != null && cluster.sendPrivate(targetName, message)) {
+            return true;
         }
+        return deliverPrivate(target, targetName, message);
+    }
 
-        if (!target.messages.offer(message)) {
-            System.err.printf("Client %s message queue is full, dropping the message!\n", target.clientID);
-            return false;
+    /** A private message routed here by another node. */
+    void deliverPrivate(String targetName, Frame message) {
+        deliverPrivate(activeHandlersMap.get(targetName), targetName, message);
+    }
+
+    private boolean deliverPrivate(SocketHandler target, String targetName, Frame message) {
+        if (target == null) {
+            return offline != null && offline.store(targetName, message.text());
         }
-        return true;
+        return target.deliver(message, OutboundQueue.Lane.PRIVATE);
     }
 
-    synchronized boolean setName(SocketHandler handler, String newName) {
+    SocketHandler find(String name) {
+        return activeHandlersMap.get(name);
+    }
+
+    /**
+     * Names or renames the user. In a cluster whose home node for the name is
+     * another node, the answer comes later: this returns false and the rename
+     * is finished, nameSet included, when the home node grants the name.
+     */
+    boolean setName(SocketHandler handler, String newName) {
         if (newName == null || newName.trim().isEmpty() || newName.contains(" ")) {
             return false;
         }
 
-        if (activeHandlersMap.containsKey(newName) && !newName.equals(handler.userName)) {
+        if (newName.equals(handler.userName)) {
+            return true;
+        }
+        // One claim at a time, names asked for meanwhile are refused
+        if (handler.claiming != null) {
             return false;
         }
 
-        if (handler.userName != null) {
-            activeHandlersMap.remove(handler.userName);
+        // putIfAbsent is the single point deciding who owns a name
+        SocketHandler owner = activeHandlersMap.putIfAbsent(newName, handler);
+        if (owner != null && owner != handler) {
+            return false;
         }
+        if (cluster == null) {
+            rename(handler, newName);
+            return true;
+        }
+        // Then the cluster; the local reservation keeps two connections here from asking at once
+        synchronized (handler) {
+            handler.claiming = newName;
+        }
+        CompletableFuture<Boolean> claim = cluster.claim(newName);
+        if (claim.isDone()) {
+            return claimed(handler, newName, claim.join());
+        }
+        claim.thenAccept(granted -> {
+            if (claimed(handler, newName, granted)) {
+                handler.nameSet = true;
+            }
+        });
+        return false;
+    }
+
+    // The cluster's answer; under the handler's lock so forget either gives up the claim or sees the new name
+    private boolean claimed(SocketHandler handler, String newName, boolean granted) {
+        synchronized (handler) {
+            if (handler.claiming != newName) {
+                // The connection is gone and has given up its reservation, the name goes back unless taken again
+                if (granted && !activeHandlersMap.containsKey(newName)) {
+                    cluster.release(newName);
+                }
+                return false;
+            }
+            handler.claiming = null;
+            if (!granted) {
+                activeHandlersMap.remove(newName, handler);
+                return false;
+            }
+            rename(handler, newName);
+            return true;
+        }
+    }
 
+    private void rename(SocketHandler handler, String newName) {
+        String oldName = handler.userName;
+        int oldId = handler.userId;
+        handler.userId = 0;
+        handler.namePrefix = ("[" + newName + "] >> ").getBytes(StandardCharsets.UTF_8);
         handler.userName = newName;
-        activeHandlersMap.put(newName, handler);
-        return true;
+        if (oldId != 0) {
+            userIds.release(oldId);
+        }
+        if (oldName != null) {
+            release(oldName, handler);
+        } else {
+            metrics.connectionNamed();
+            if (history != null && config.historyReplay > 0) {
+                for (int room : handler.userRooms) {
+                    history.replay(roomIds.name(room), config.historyReplay, handler);
+                }
+            }
+        }
+        if (cluster != null) {
+            cluster.named(newName);
+        }
+        if (offline != null) {
+            // Kept messages go out as one batch; one sent right after the claim may overtake them
+            Frame kept = offline.take(newName);
+            if (kept != null) {
+                handler.deliver(kept, OutboundQueue.Lane.PRIVATE);
+            }
+        }
     }
 
-    synchronized void joinGroup(String roomName, SocketHandler handler) {
+    void joinGroup(String roomName, SocketHandler handler) {
         if (roomName == null || roomName.trim().isEmpty()) {
             return;
         }
 
-        rooms.putIfAbsent(roomName, new HashSet<>());
-        HashSet<SocketHandler> roomMembers = rooms.get(roomName);
-        roomMembers.add(handler);
-        handler.userRooms.add(roomName);
+        // Every member holds the room's id, from before it is in the room until after it has left
+        int id = roomIds.acquire(roomName);
+        if (shards != null) {
+            if (updateRooms(handler, id, true)) {
+                shards.join(roomName, handler);
+            } else {
+                roomIds.release(id);
+            }
+            return;
+        }
+        addMember(roomName, handler);
+        if (updateRooms(handler, id, true)) {
+            joined(roomName, handler);
+        } else {
+            roomIds.release(id);
+        }
+    }
+
+    void addMember(String roomName, SocketHandler handler) {
+        rooms.compute(roomName, (name, room) -> {
+            if (room == null) {
+                if (cluster != null) {
+                    cluster.roomCreated(name);
+                }
+                return new Room(name, handler);
+            }
+            SocketHandler[] members = room.members;
+            int i = indexOf(members, handler);
+            if (i >= 0) {
+                return room;
+            }
+            i = -i - 1;
+            SocketHandler[] updated = new SocketHandler[members.length + 1];
+            System.arraycopy(members, 0, updated, 0, i);
+            updated[i] = handler;
+            System.arraycopy(members, i, updated, i + 1, members.length - i);
+            room.members = updated;
+            return room;
+        });
+    }
+
+    void joined(String roomName, SocketHandler handler) {
+        // Rooms joined before the name is set are replayed with it, after a binary handshake if any
+        if (handler.userName != null && history != null && config.historyReplay > 0) {
+            history.replay(roomName, config.historyReplay, handler);
+        }
     }
 
-    synchronized void leaveGroup(String roomName, SocketHandler handler) {
-        if (!handler.userRooms.contains(roomName)) {
+    void leaveGroup(String roomName, SocketHandler handler) {
+        // A room without an id has no members, so there is nothing to leave
+        int id = roomName == null ? 0 : roomIds.find(roomName);
+        if (id == 0 || !updateRooms(handler, id, false)) {
             return;
         }
 
-        HashSet<SocketHandler> roomMembers = rooms.get(roomName);
-        if (roomMembers != null) {
-            roomMembers.remove(handler);
-            handler.userRooms.remove(roomName);
-            
-            if (roomMembers.isEmpty()) {
-                rooms.remove(roomName);
+        if (shards != null) {
+            shards.leave(roomName, handler);
+        } else {
+            removeMember(roomName, handler);
+        }
+        roomIds.release(id);
+    }
+
+    void removeMember(String roomName, SocketHandler handler) {
+        rooms.computeIfPresent(roomName, (name, room) -> {
+            SocketHandler[] members = room.members;
+            int i = indexOf(members, handler);
+            if (i < 0) {
+                return room;
+            }
+            if (members.length == 1) {
+                if (cluster != null) {
+                    cluster.roomRemoved(name);
+                }
+                return null;
+            }
+            SocketHandler[] updated = new SocketHandler[members.length - 1];
+            System.arraycopy(members, 0, updated, 0, i);
+            System.arraycopy(members, i + 1, updated, i, members.length - i - 1);
+            room.members = updated;
+            return room;
+        });
+    }
+
+    // Binary search by connection id, -(insertion point) - 1 when absent like Arrays.binarySearch
+    private static int indexOf(SocketHandler[] members, SocketHandler handler) {
+        int low = 0;
+        int high = members.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = members[mid].connectionId;
+            if (id < handler.connectionId) {
+                low = mid + 1;
+            } else if (id > handler.connectionId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static boolean updateRooms(SocketHandler handler, int roomId, boolean join) {
+        while (true) {
+            int[] current = handler.userRooms;
+            int i = Arrays.binarySearch(current, roomId);
+            if (i >= 0 == join) {
+                return false;
+            }
+            int[] updated;
+            if (join) {
+                i = -i - 1;
+                updated = new int[current.length + 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                updated[i] = roomId;
+                System.arraycopy(current, i, updated, i + 1, current.length - i);
+            } else {
+                updated = new int[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+            }
+            if (USER_ROOMS.compareAndSet(handler, current, updated)) {
+                return true;
             }
         }
     }
 
-    synchronized Set<String> groupsOf(SocketHandler handler) {
-        return new LinkedHashSet<>(handler.userRooms);
+    /** The user's room names, in the order of a HashSet of them as #groups has always listed them. */
+    Set<String> groupsOf(SocketHandler handler) {
+        HashSet<String> names = new HashSet<>();
+        for (int room : handler.userRooms) {
+            names.add(roomIds.name(room));
+        }
+        return names;
     }
 
-    synchronized boolean add(SocketHandler handler) {
+    /** Named connections, weakly consistent like the map behind it. */
+    Collection<SocketHandler> named() {
+        return activeHandlersMap.values();
+    }
+
+    Collection<Room> rooms() {
+        return rooms.values();
+    }
+
+    private void release(String name, SocketHandler handler) {
+        // The cluster is told first, so a claim from here after the removal reaches the home node after the release
+        if (cluster != null && activeHandlersMap.get(name) == handler) {
+            cluster.release(name);
+        }
+        activeHandlersMap.remove(name, handler);
+    }
+
+    boolean add(SocketHandler handler) {
+        metrics.connectionsAccepted.increment();
+        metrics.connectionsPreName.increment();
+        if (timers != null) {
+            handler.watch(timers);
+        }
         joinGroup("public", handler);
         return true;
     }
 
-    synchronized boolean remove(SocketHandler handler) {
-        for (String room : new HashSet<>(handler.userRooms)) {
-            leaveGroup(room, handler);
+    /**
+     * Hands a session over to a new connection that has not set a name yet:
+     * the name and rooms move over, the previous connection is closed if it is
+     * still open, and what the client missed is queued ahead of anything new.
+     */
+    boolean resume(SocketHandler handler, String token, long count) {
+        Sessions.Session session = sessions == null ? null : sessions.get(token);
+        if (session == null || handler.userName != null || handler.claiming != null) {
+            return false;
         }
-        
-        if (handler.userName != null) {
-            activeHandlersMap.remove(handler.userName);
+        SocketHandler previous;
+        byte[] replay;
+        boolean detached;
+        synchronized (session) {
+            previous = session.owner;
+            if (previous == null || previous == handler || session.binary != handler.binary
+                    || (replay = session.since(count)) == null) {
+                return false;
+            }
+            session.owner = handler;
+            detached = session.detached;
+            session.detached = false;
+            if (session.expiry != null) {
+                session.expiry.cancel();
+                session.expiry = null;
+            }
+        }
+        giveUpClaim(previous);
+        for (int room : handler.userRooms) {
+            leaveGroup(roomIds.name(room), handler);
         }
-        
+        // Swapped rather than read and written, so a join or leave racing on previous is not lost
+        int[] moved = USER_ROOMS.getAndSet(previous, SocketHandler.NO_ROOMS);
+        handler.userRooms = moved;
+        for (int room : moved) {
+            String roomName = roomIds.name(room);
+            if (shards != null) {
+                shards.join(roomName, handler);
+                shards.leave(roomName, previous);
+            } else {
+                addMember(roomName, handler);
+                removeMember(roomName, previous);
+            }
+        }
+
+        String name = previous.userName;
+        handler.adopt(previous, session, replay);
+        // The id's hold went over with the name
+        previous.userId = 0;
+        activeHandlersMap.replace(name, previous, handler);
+        metrics.connectionNamed();
+
+        // Closed only now, its removal then finds neither rooms nor the name to give up
+        if (detached) {
+            metrics.sessionsDetached.decrement();
+            metrics.connectionsNamed.decrement();
+            if (previous.binary) {
+                binaryClients.decrementAndGet();
+            }
+        } else {
+            previous.disconnect();
+        }
+        metrics.sessionsResumed.increment();
+        return true;
+    }
+
+    boolean remove(SocketHandler handler) {
+        handler.unwatch();
+        if (handler.mySocket != null) {
+            admission.release(handler.mySocket.getInetAddress());
+        }
+        if (sessions != null && sessions.detach(handler)) {
+            return true;
+        }
+        forget(handler);
         return true;
     }
+
+    // A claim still out is dropped with its reservation, the cluster's answer then finds nobody waiting
+    private void giveUpClaim(SocketHandler handler) {
+        String claiming;
+        synchronized (handler) {
+            claiming = handler.claiming;
+            handler.claiming = null;
+        }
+        if (claiming != null) {
+            activeHandlersMap.remove(claiming, handler);
+        }
+    }
+
+    /** Takes the user out of its rooms and gives up its name. */
+    void forget(SocketHandler handler) {
+        giveUpClaim(handler);
+        for (int room : handler.userRooms) {
+            leaveGroup(roomIds.name(room), handler);
+        }
+
+        if (handler.userId != 0) {
+            userIds.release(handler.userId);
+            handler.userId = 0;
+        }
+        if (handler.binary) {
+            binaryClients.decrementAndGet();
+        }
+        if (handler.userName != null) {
+            release(handler.userName, handler);
+            metrics.connectionsNamed.decrement();
+        } else {
+            metrics.connectionsPreName.decrement();
+        }
+    }
 }
\ No newline at end of file
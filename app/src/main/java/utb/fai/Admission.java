@@ -0,0 +1,77 @@
+package utb.fai;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides at accept time whether a connection may stay: a cap on all open
+ * connections and one per remote address. A rejected connection gets one
+ * line saying why and is closed before any handler or task exists for it.
+ */
+final class Admission {
+	static final String FULL = "Server full, try again later";
+	static final String ADDRESS_FULL = "Too many connections from your address";
+
+	private final int maxClients;
+	private final int maxPerAddress;
+	private final Metrics metrics;
+	private final AtomicInteger open = new AtomicInteger();
+	private final ConcurrentHashMap<InetAddress, Integer> perAddress = new ConcurrentHashMap<>();
+
+	Admission(ServerConfig config, Metrics metrics) {
+		this.maxClients = config.maxClients;
+		this.maxPerAddress = config.maxPerAddress;
+		this.metrics = metrics;
+	}
+
+	/** Returns null when admitted, otherwise the reason to reject with. */
+	String admit(InetAddress address) {
+		if (open.incrementAndGet() > maxClients && maxClients > 0) {
+			open.decrementAndGet();
+			metrics.rejectedFull.increment();
+			return FULL;
+		}
+		if (maxPerAddress > 0) {
+			boolean[] admitted = { true };
+			perAddress.compute(address, (a, n) -> {
+				if (n != null && n >= maxPerAddress) {
+					admitted[0] = false;
+					return n;
+				}
+				return n == null ? 1 : n + 1;
+			});
+			if (!admitted[0]) {
+				open.decrementAndGet();
+				metrics.rejectedAddress.increment();
+				return ADDRESS_FULL;
+			}
+		}
+		return null;
+	}
+
+	/** Called once for every admitted connection when it ends. */
+	void release(InetAddress address) {
+		open.decrementAndGet();
+		if (maxPerAddress > 0) {
+			perAddress.computeIfPresent(address, (a, n) -> n == 1 ? null : n - 1);
+		}
+	}
+
+	int open() {
+		return open.get();
+	}
+
+	/** Writes the reason and closes, without waiting on a client that does not read. */
+	static void reject(SocketChannel channel, String reason) {
+		Log.debug("Rejected %s: %s", channel.socket().getInetAddress(), reason);
+		try (channel) {
+			channel.configureBlocking(false);
+			channel.write(Frame.of(reason).buffer());
+		} catch (IOException e) {
+			// the client is gone already
+		}
+	}
+}
@@ -2,51 +2,144 @@ package utb.fai;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
 
 public class App {
 
 	public static void main(String[] args) {
-		int port = 33000, max_conn = 2;
+		ServerConfig config = ServerConfig.parse(args);
+		if (config == null) {
+			System.out.print(ServerConfig.usage(new ServerConfig()));
+			return;
+		}
+		int port = config.port, max_conn = config.maxConnections;
+		try {
+			Log.configure(config.logLevel, config.logFile, config.logBuffer);
+		} catch (IOException e) {
+			System.err.printf("Cannot open log file %s, logging to stdout\n", config.logFile);
+		}
+		Log.start();
 
-		if (args.length > 0) {
-			if (args[0].startsWith("--help")) {
-				System.out.printf("Usage: Server [PORT] [MAX_CONNECTIONS]\n" +
-						"If PORT is not specified, default port %d is used\n" +
-						"If MAX_CONNECTIONS is not specified, default number=%d is used", port, max_conn);
-				return;
-			}
+		// TODO Auto-generated method stub
+		System.out.printf("IM server listening on port %d, maximum nr. of connections=%d...\n", port, max_conn);
+		ActiveHandlers activeHandlers = new ActiveHandlers(config);
+		if (config.roomShards > 0) {
+			RoomShards shards = new RoomShards(activeHandlers, config.roomShards);
+			shards.start();
+			activeHandlers.shards = shards;
+			System.out.printf("Rooms sharded over %d threads\n", config.roomShards);
+		}
+		if (config.idleTimeout > 0 || config.nameTimeout > 0 || config.writeStallTimeout > 0 || config.pingInterval > 0
+				|| config.sessionGrace > 0) {
+			TimingWheel timers = new TimingWheel();
+			timers.start();
+			activeHandlers.timers = timers;
+		}
+		if (config.sessionGrace > 0) {
+			activeHandlers.sessions = new Sessions(activeHandlers);
+		}
+		if (config.historyDir != null) {
 			try {
-				port = Integer.decode(args[0]);
-			} catch (NumberFormatException e) {
-				System.err.printf("Argument %s is not integer, using default value", args[0], port);
+				History history = new History(config, activeHandlers.metrics);
+				history.start();
+				activeHandlers.history = history;
+				Log.info("Room history in %s, %d rooms recovered", config.historyDir, history.rooms());
+			} catch (IOException e) {
+				Log.error("Cannot open room history in %s, running without it", config.historyDir, e);
 			}
-			if (args.length > 1)
+		}
+		if (config.offlineTotalBytes > 0) {
+			OfflineStore offline = new OfflineStore(config, activeHandlers.metrics);
+			if (config.offlineFile != null) {
 				try {
-					max_conn = Integer.decode(args[1]);
-				} catch (NumberFormatException e) {
-					System.err.printf("Argument %s is not integer, using default value", args[1], max_conn);
+					offline.load(Paths.get(config.offlineFile));
+					Log.info("Offline messages for %d users restored from %s", offline.users(), config.offlineFile);
+				} catch (IOException e) {
+					Log.error("Cannot restore offline messages from %s", config.offlineFile, e);
 				}
+				Thread saver = new Thread(() -> {
+					while (true) {
+						LockSupport.parkNanos(OfflineStore.SAVE_INTERVAL);
+						saveOffline(offline, config.offlineFile);
+					}
+				}, "offline-saver");
+				saver.setDaemon(true);
+				saver.start();
+			}
+			activeHandlers.offline = offline;
+		}
+		if (!config.peers.isEmpty()) {
+			Cluster cluster = new Cluster(config, activeHandlers);
+			try {
+				cluster.start(config.peerPort());
+				activeHandlers.cluster = cluster;
+				System.out.printf("Cluster node %s, peers connect on port %d\n", cluster.nodeId, config.peerPort());
+			} catch (IOException e) {
+				Log.error("Cannot listen for peers on port %d, running standalone", config.peerPort(), e);
+			}
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			if (activeHandlers.history != null) {
+				activeHandlers.history.close();
+			}
+			if (activeHandlers.offline != null && config.offlineFile != null) {
+				saveOffline(activeHandlers.offline, config.offlineFile);
+			}
+			Log.info("Shutting down\n%s\nlog records dropped=%d", activeHandlers.metrics, Log.dropped.sum());
+			Log.flush();
+		}));
+		if (config.metricsPort > 0) {
+			try {
+				new MetricsServer(activeHandlers).start(config.metricsPort);
+				System.out.printf("Metrics on http://localhost:%d/metrics\n", config.metricsPort);
+			} catch (IOException e) {
+				Log.error("Cannot serve metrics on port %d", config.metricsPort, e);
+			}
+		}
 
+		if (config.transport == ServerConfig.Transport.NIO) {
+			System.out.printf("Using nio transport with %d event loops\n", config.eventLoops);
+			try {
+				new NioServer(config, activeHandlers).run();
+			} catch (IOException e) {
+				Log.error("nio transport failed", e);
+			}
+			return;
+		}
+
+		ExecutorService pool;
+		if (config.threads == ServerConfig.Threads.VIRTUAL) {
+			System.out.println("Running connection handlers on virtual threads");
+			pool = Executors.newVirtualThreadPerTaskExecutor();
+		} else {
+			pool = Executors.newFixedThreadPool(2 * max_conn);
 		}
-		// TODO Auto-generated method stub
-		System.out.printf("IM server listening on port %d, maximum nr. of connections=%d...\n", port, max_conn);
-		ExecutorService pool = Executors.newFixedThreadPool(2 * max_conn);
-		ActiveHandlers activeHandlers = new ActiveHandlers();
 
 		try {
-			ServerSocket sSocket = new ServerSocket(port);
+			// Blocking channels rather than a plain ServerSocket, so runOutput can write shared buffers directly
+			ServerSocketChannel sSocket = ServerSocketChannel.open();
+			sSocket.bind(new InetSocketAddress(port), config.backlog);
 			do {
-				Socket clientSocket = sSocket.accept();
+				SocketChannel channel = sSocket.accept();
+				String rejected = activeHandlers.admission.admit(channel.socket().getInetAddress());
+				if (rejected != null) {
+					Admission.reject(channel, rejected);
+					continue;
+				}
+				Socket clientSocket = channel.socket();
 				clientSocket.setKeepAlive(true);
 				SocketHandler handler = new SocketHandler(clientSocket, activeHandlers);
-				pool.execute(handler.inputHandler);
-				pool.execute(handler.outputHandler);
+				pool.execute(handler::runInput);
+				pool.execute(handler::runOutput);
 			} while (!pool.isTerminated());
 		} catch (UnknownHostException e) {
-			e.printStackTrace();
+			Log.error("Accept loop failed", e);
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error("Accept loop failed", e);
 			pool.shutdown();
 			try {
 				// Wait a while for existing tasks to terminate
@@ -54,7 +147,7 @@ public class App {
 					pool.shutdownNow(); // Cancel currently executing tasks
 					// Wait a while for tasks to respond to being cancelled
 					if (!pool.awaitTermination(60, TimeUnit.SECONDS))
-						System.err.println("Pool did not terminate");
+						Log.error("Pool did not terminate");
 				}
 			} catch (InterruptedException ie) {
 				// (Re-)Cancel if current thread also interrupted
@@ -64,4 +157,12 @@ public class App {
 			}
 		}
 	}
+
+	private static void saveOffline(OfflineStore offline, String file) {
+		try {
+			offline.save(Paths.get(file));
+		} catch (IOException e) {
+			Log.error("Cannot save offline messages to %s", file, e);
+		}
+	}
 }
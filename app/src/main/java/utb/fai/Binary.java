@@ -0,0 +1,52 @@
+package utb.fai;
+
+/**
+ * The opt-in binary protocol. A client sends the line "#binary" before its
+ * name; from then on both directions carry frames of
+ * [int length][byte opcode][int room][int sender][payload], the length
+ * counting everything after itself and ints being big-endian. Room and
+ * user ids come from the server's Interner; 0 means none.
+ * <p>
+ * Client to server: NAME name, CHAT text (room 0 sends to all of the
+ * client's rooms like a text line, otherwise to that room only), PRIVATE
+ * "target text", JOIN name, LEAVE name (or by room id), GROUPS, and LINE
+ * carrying any text protocol line, e.g. a command without an opcode.
+ * <p>
+ * Server to client: CHAT and PRIVATE with the sender's id, JOIN with the
+ * room's id and name acknowledging a join, GROUPS with the comma separated
+ * room names, NAME giving the name behind a sender id before its first
+ * message, and LINE for anything else the text protocol would send,
+ * without the CRLF.
+ */
+final class Binary {
+	static final String HANDSHAKE = "#binary";
+
+	static final byte CHAT = 1, PRIVATE = 2, JOIN = 3, LEAVE = 4, GROUPS = 5, NAME = 6, LINE = 7;
+
+	// Length prefix, then opcode, room and sender before the payload
+	static final int LENGTH = 4;
+	static final int HEADER = 9;
+
+	private Binary() {
+	}
+
+	/** Writes the length prefix and header for a payload of the given size at pos. */
+	static int header(byte[] out, int pos, byte opcode, int room, int sender, int payload) {
+		putInt(out, pos, HEADER + payload);
+		out[pos + 4] = opcode;
+		putInt(out, pos + 5, room);
+		putInt(out, pos + 9, sender);
+		return pos + LENGTH + HEADER;
+	}
+
+	static int getInt(byte[] b, int pos) {
+		return (b[pos] & 0xFF) << 24 | (b[pos + 1] & 0xFF) << 16 | (b[pos + 2] & 0xFF) << 8 | (b[pos + 3] & 0xFF);
+	}
+
+	static void putInt(byte[] b, int pos, int value) {
+		b[pos] = (byte) (value >>> 24);
+		b[pos + 1] = (byte) (value >>> 16);
+		b[pos + 2] = (byte) (value >>> 8);
+		b[pos + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,102 @@
+package utb.fai;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read buffers and gathering-write batches lent to connections only while
+ * data is in flight, so an idle connection holds neither. Buffers come in
+ * power-of-two size classes from MIN to MAX bytes. Each class, and the
+ * batches, keep an equal share of ServerConfig.bufferPoolBytes for reuse;
+ * whatever comes back beyond that is left to the garbage collector.
+ */
+final class BufferPool {
+	static final int MIN = 512;
+	static final int MAX = 8 * 1024;
+	private static final int CLASSES = Integer.numberOfTrailingZeros(MAX / MIN) + 1;
+
+	private final Idle<ByteBuffer>[] buffers;
+	private final Idle<ByteBuffer[]> batches;
+	private final int batchFrames;
+	private final Metrics metrics;
+
+	private static final class Idle<T> {
+		final ConcurrentLinkedQueue<T> items = new ConcurrentLinkedQueue<>();
+		final AtomicInteger count = new AtomicInteger();
+		final int limit;
+		final long itemBytes;
+
+		Idle(int limit, long itemBytes) {
+			this.limit = limit;
+			this.itemBytes = itemBytes;
+		}
+
+		T poll() {
+			T item = items.poll();
+			if (item != null) {
+				count.decrementAndGet();
+			}
+			return item;
+		}
+
+		void offer(T item) {
+			if (count.incrementAndGet() <= limit) {
+				items.offer(item);
+			} else {
+				count.decrementAndGet();
+			}
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	BufferPool(ServerConfig config, Metrics metrics) {
+		this.metrics = metrics;
+		this.batchFrames = config.batchFrames;
+		long share = config.bufferPoolBytes / (CLASSES + 1);
+		this.buffers = new Idle[CLASSES];
+		for (int i = 0; i < CLASSES; i++) {
+			buffers[i] = new Idle<>((int) Math.min(Integer.MAX_VALUE, share / (MIN << i)), MIN << i);
+		}
+		long batchBytes = 16 + 8L * batchFrames;
+		this.batches = new Idle<>((int) Math.min(Integer.MAX_VALUE, share / batchBytes), batchBytes);
+	}
+
+	/** A cleared heap buffer of at least size bytes, at most MAX. */
+	ByteBuffer acquire(int size) {
+		int sizeClass = Math.max(0, 32 - Integer.numberOfLeadingZeros((Math.min(size, MAX) - 1) / MIN));
+		ByteBuffer buffer = buffers[sizeClass].poll();
+		metrics.buffersAcquired.increment();
+		if (buffer == null) {
+			metrics.buffersAllocated.increment();
+			return ByteBuffer.allocate(MIN << sizeClass);
+		}
+		return buffer.clear();
+	}
+
+	/** Takes back a buffer from acquire; the caller must not touch it afterwards. */
+	void release(ByteBuffer buffer) {
+		buffers[Integer.numberOfTrailingZeros(buffer.capacity() / MIN)].offer(buffer);
+	}
+
+	/** An empty array of ServerConfig.batchFrames for one gathering write. */
+	ByteBuffer[] batch() {
+		ByteBuffer[] batch = batches.poll();
+		return batch != null ? batch : new ByteBuffer[batchFrames];
+	}
+
+	void release(ByteBuffer[] batch) {
+		Arrays.fill(batch, null);
+		batches.offer(batch);
+	}
+
+	/** Bytes held by idle buffers and batches. */
+	long idleBytes() {
+		long bytes = batches.count.get() * batches.itemBytes;
+		for (Idle<ByteBuffer> idle : buffers) {
+			bytes += idle.count.get() * idle.itemBytes;
+		}
+		return bytes;
+	}
+}
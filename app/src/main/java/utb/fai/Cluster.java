@@ -0,0 +1,424 @@
+package utb.fai;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Several servers sharing rooms and the user name space. Every node keeps a
+ * link to every other: it announces the rooms it has members in and the
+ * names it holds, forwards a broadcast once to each node having members in
+ * one of the rooms, and routes a private message to the node holding the
+ * name. Each name has a home node (by hash over the configured node ids)
+ * that decides who may hold it, so a name is unique across the cluster.
+ * While the home node is unreachable, the next reachable node in the same
+ * order decides in its place. Two sides of a partition may then both grant
+ * a name; when the links come back, the home node learns every holder and
+ * warns about names held twice.
+ * <p>
+ * Peers connect to --peer-bind only, and a link is accepted only from the
+ * address configured for the node it says it is. Nothing else is checked,
+ * so the peer port belongs on a trusted network.
+ * <p>
+ * Messages are [int length][byte type][fields]; strings and frames are an
+ * int length followed by the bytes. A message that does not decode fails
+ * the link like an I/O error.
+ */
+final class Cluster {
+	static final byte ROOM_JOIN = 1, ROOM_LEAVE = 2, NAME_ADD = 3, NAME_REMOVE = 4, BROADCAST = 5, PRIVATE = 6,
+			CLAIM = 7, CLAIM_REPLY = 8, RELEASE = 9;
+	private static final long CLAIM_TIMEOUT_MILLIS = 2000;
+	static final int MAX_MESSAGE = 16 * 1024 * 1024;
+
+	final String nodeId;
+	final Metrics metrics;
+	// The address peers connect to and links to them leave from, resolved by start
+	private final String bindHost;
+	InetAddress bind;
+	private final ActiveHandlers handlers;
+	private final Map<String, Peer> peers = new LinkedHashMap<>();
+	// All node ids in the same order on every node, to find a name's home
+	private final String[] nodeIds;
+
+	// Names held on other nodes, for routing private messages
+	private final ConcurrentHashMap<String, Peer> remoteNames = new ConcurrentHashMap<>();
+	// Names homed here -> the node holding them
+	private final ConcurrentHashMap<String, String> owners = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> claims = new ConcurrentHashMap<>();
+	private final AtomicLong nextClaim = new AtomicLong();
+
+	Cluster(ServerConfig config, ActiveHandlers handlers) {
+		this.nodeId = config.nodeId();
+		this.bindHost = config.peerBind;
+		this.metrics = handlers.metrics;
+		this.handlers = handlers;
+		TreeSet<String> ids = new TreeSet<>();
+		ids.add(nodeId);
+		for (String[] peer : config.peers) {
+			if (!peer[0].equals(nodeId)) {
+				peers.put(peer[0], new Peer(peer[0], peer[1], Integer.decode(peer[2]), this));
+				ids.add(peer[0]);
+			}
+		}
+		this.nodeIds = ids.toArray(new String[0]);
+	}
+
+	void start(int peerPort) throws IOException {
+		bind = InetAddress.getByName(bindHost);
+		ServerSocket server = new ServerSocket();
+		server.bind(new InetSocketAddress(bind, peerPort));
+		Thread acceptor = new Thread(() -> {
+			while (true) {
+				try {
+					Socket socket = server.accept();
+					socket.setTcpNoDelay(true);
+					Thread reader = new Thread(() -> receive(socket), "peer-in-" + socket.getRemoteSocketAddress());
+					reader.setDaemon(true);
+					reader.start();
+				} catch (IOException e) {
+					Log.error("Accepting peers failed", e);
+					return;
+				}
+			}
+		}, "peer-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		for (Peer peer : peers.values()) {
+			peer.start();
+		}
+	}
+
+	Collection<Peer> peers() {
+		return peers.values();
+	}
+
+	// Where the name's owner is recorded while every node is up
+	private String firstHome(String name) {
+		return nodeIds[Math.floorMod(name.hashCode(), nodeIds.length)];
+	}
+
+	// The first node from firstHome on that is this one or has its link up
+	private String home(String name) {
+		int first = Math.floorMod(name.hashCode(), nodeIds.length);
+		for (int i = 0; i < nodeIds.length; i++) {
+			String id = nodeIds[(first + i) % nodeIds.length];
+			if (id.equals(nodeId) || peers.get(id).isUp()) {
+				return id;
+			}
+		}
+		return nodeId;
+	}
+
+	// Called from inside the room's compute, so joins and leaves of one room go out in order
+	void roomCreated(String room) {
+		gossip(new Message(ROOM_JOIN).string(room).bytes());
+	}
+
+	void roomRemoved(String room) {
+		gossip(new Message(ROOM_LEAVE).string(room).bytes());
+	}
+
+	private void gossip(byte[] message) {
+		for (Peer peer : peers.values()) {
+			peer.send(message);
+		}
+	}
+
+	/**
+	 * Asks the name's home node for the name without waiting for it. The
+	 * result is complete at once when this node decides, otherwise it
+	 * completes on the link's thread when the answer comes. It is false when
+	 * the home node cannot be reached in time.
+	 */
+	CompletableFuture<Boolean> claim(String name) {
+		String home = home(name);
+		if (home.equals(nodeId)) {
+			String owner = owners.putIfAbsent(name, nodeId);
+			return CompletableFuture.completedFuture(owner == null || owner.equals(nodeId));
+		}
+		Peer peer = peers.get(home);
+		long id = nextClaim.incrementAndGet();
+		CompletableFuture<Boolean> reply = new CompletableFuture<>();
+		claims.put(id, reply);
+		if (!peer.send(new Message(CLAIM).number(id).string(name).bytes())) {
+			claims.remove(id);
+			return CompletableFuture.completedFuture(false);
+		}
+		return reply.orTimeout(CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).handle((granted, e) -> {
+			claims.remove(id);
+			if (e != null) {
+				Log.warn("Node %s did not answer the claim of %s", home, name);
+				// It may still grant it later, give it back so it is not held by nobody
+				peer.send(new Message(RELEASE).string(name).bytes());
+				return false;
+			}
+			return granted;
+		});
+	}
+
+	/** Tells the others the name is now held here. */
+	void named(String name) {
+		gossip(new Message(NAME_ADD).string(name).bytes());
+	}
+
+	/** Gives a name back; called before the name leaves the local directory. */
+	void release(String name) {
+		String home = home(name);
+		owners.remove(name, nodeId);
+		if (!home.equals(nodeId)) {
+			peers.get(home).send(new Message(RELEASE).string(name).bytes());
+		}
+		// Also clears the record on whichever node stood in for the home node when the name was granted
+		gossip(new Message(NAME_REMOVE).string(name).bytes());
+	}
+
+	/** Sends a broadcast once to every node with members in any of the rooms. */
+	void forward(int[] rooms, Frame frame) {
+		byte[] bytes = null;
+		ArrayList<String> matched = new ArrayList<>();
+		for (Peer peer : peers.values()) {
+			if (!peer.isUp() || peer.rooms.isEmpty()) {
+				continue;
+			}
+			matched.clear();
+			for (int id : rooms) {
+				String room = handlers.roomIds.name(id);
+				if (peer.rooms.contains(room)) {
+					matched.add(room);
+				}
+			}
+			if (matched.isEmpty()) {
+				continue;
+			}
+			if (bytes == null) {
+				bytes = bytes(frame);
+			}
+			Message message = new Message(BROADCAST).integer(matched.size());
+			for (String room : matched) {
+				message.string(room);
+			}
+			if (peer.send(message.frame(bytes).bytes())) {
+				metrics.peerForwarded.increment();
+			}
+		}
+	}
+
+	/** Routes a private message to the node holding the name; false when nobody does. */
+	boolean sendPrivate(String name, Frame frame) {
+		Peer peer = remoteNames.get(name);
+		if (peer == null || !peer.send(new Message(PRIVATE).string(name).frame(bytes(frame)).bytes())) {
+			return false;
+		}
+		metrics.peerForwarded.increment();
+		return true;
+	}
+
+	/** What a peer has to know about this node, sent first whenever its link (re)connects. */
+	byte[] snapshot(Peer peer) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (ActiveHandlers.Room room : handlers.rooms()) {
+			out.writeBytes(new Message(ROOM_JOIN).string(room.name).bytes());
+		}
+		for (SocketHandler handler : handlers.named()) {
+			String name = handler.userName;
+			if (name == null) {
+				// Still waiting for its first name to be granted
+				continue;
+			}
+			out.writeBytes(new Message(NAME_ADD).string(name).bytes());
+			if (firstHome(name).equals(peer.id)) {
+				// The peer lost its ownership records if it restarted, claim 0 expects no reply
+				out.writeBytes(new Message(CLAIM).number(0).string(name).bytes());
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private void receive(Socket socket) {
+		Peer peer = null;
+		try (socket) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			String id = in.readUTF();
+			out.writeUTF(nodeId);
+			out.flush();
+			Peer claimed = peers.get(id);
+			if (claimed == null || !claimed.connectsFrom(socket.getInetAddress())) {
+				Log.warn("Unknown node %s connected from %s, closing", id, socket.getRemoteSocketAddress());
+				return;
+			}
+			peer = claimed;
+			Log.info("Peer %s connected", peer);
+			while (true) {
+				int length = in.readInt();
+				if (length < 1 || length > MAX_MESSAGE) {
+					throw new ProtocolException("message of " + length + " bytes");
+				}
+				byte[] body = new byte[length];
+				in.readFully(body);
+				try {
+					handle(peer, ByteBuffer.wrap(body));
+				} catch (BufferUnderflowException e) {
+					throw new ProtocolException("truncated message of type " + body[0]);
+				}
+			}
+		} catch (EOFException e) {
+			Log.info("Peer %s disconnected", peer);
+		} catch (IOException e) {
+			Log.warn("Link from peer %s failed: %s", peer, e);
+		} finally {
+			if (peer != null) {
+				forget(peer);
+			}
+		}
+	}
+
+	/** Drops everything learned from a node, it announces it all again when it comes back. */
+	private void forget(Peer peer) {
+		peer.rooms.clear();
+		remoteNames.values().removeIf(p -> p == peer);
+		owners.values().removeIf(id -> id.equals(peer.id));
+	}
+
+	private void handle(Peer peer, ByteBuffer in) throws ProtocolException {
+		byte type = in.get();
+		switch (type) {
+			case ROOM_JOIN:
+				peer.rooms.add(string(in));
+				break;
+			case ROOM_LEAVE:
+				peer.rooms.remove(string(in));
+				break;
+			case NAME_ADD:
+				remoteNames.put(string(in), peer);
+				break;
+			case NAME_REMOVE: {
+				String name = string(in);
+				remoteNames.remove(name, peer);
+				owners.remove(name, peer.id);
+				break;
+			}
+			case BROADCAST: {
+				metrics.peerReceived.increment();
+				String[] rooms = new String[count(in)];
+				for (int i = 0; i < rooms.length; i++) {
+					rooms[i] = string(in);
+				}
+				handlers.deliverFromPeer(rooms, frame(in));
+				break;
+			}
+			case PRIVATE: {
+				metrics.peerReceived.increment();
+				String name = string(in);
+				handlers.deliverPrivate(name, frame(in));
+				break;
+			}
+			case CLAIM: {
+				long id = in.getLong();
+				String name = string(in);
+				String owner = owners.putIfAbsent(name, peer.id);
+				boolean granted = owner == null || owner.equals(peer.id);
+				if (id != 0) {
+					peer.send(new Message(CLAIM_REPLY).number(id).integer(granted ? 1 : 0).bytes());
+				} else if (!granted) {
+					Log.warn("Name %s is held on both %s and %s", name, owner, peer.id);
+				}
+				break;
+			}
+			case CLAIM_REPLY: {
+				CompletableFuture<Boolean> reply = claims.get(in.getLong());
+				if (reply != null) {
+					reply.complete(in.getInt() != 0);
+				}
+				break;
+			}
+			case RELEASE:
+				owners.remove(string(in), peer.id);
+				break;
+			default:
+				Log.warn("Unknown message type %d from peer %s", type, peer);
+		}
+	}
+
+	// A length or count read from the message, which must fit in what is left of it
+	private static int count(ByteBuffer in) throws ProtocolException {
+		int count = in.getInt();
+		if (count < 0 || count > in.remaining()) {
+			throw new ProtocolException(count + " does not fit in the " + in.remaining() + " bytes left");
+		}
+		return count;
+	}
+
+	private static String string(ByteBuffer in) throws ProtocolException {
+		byte[] bytes = new byte[count(in)];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static Frame frame(ByteBuffer in) throws ProtocolException {
+		int length = count(in);
+		ByteBuffer framed = in.slice(in.position(), length);
+		in.position(in.position() + length);
+		return Frame.wrap(framed);
+	}
+
+	private static byte[] bytes(Frame frame) {
+		// Peers get text, sender ids only mean something on this node
+		ByteBuffer buffer = frame.text().buffer();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/** Builds one message; the length is filled in by bytes(). */
+	private static final class Message extends ByteArrayOutputStream {
+		Message(byte type) {
+			super(64);
+			count = 4;
+			write(type);
+		}
+
+		Message integer(int value) {
+			writeInt(value);
+			return this;
+		}
+
+		Message number(long value) {
+			writeInt((int) (value >>> 32));
+			writeInt((int) value);
+			return this;
+		}
+
+		Message string(String value) {
+			return frame(value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		Message frame(byte[] bytes) {
+			writeInt(bytes.length);
+			write(bytes, 0, bytes.length);
+			return this;
+		}
+
+		private void writeInt(int value) {
+			write(value >>> 24);
+			write(value >>> 16);
+			write(value >>> 8);
+			write(value);
+		}
+
+		byte[] bytes() {
+			byte[] bytes = toByteArray();
+			ByteBuffer.wrap(bytes).putInt(0, bytes.length - 4);
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package utb.fai;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Maps "#command" tokens to their handlers. Lookup hashes the token bytes in
+ * place, so dispatching a line allocates nothing; arguments are passed on as
+ * offsets into the same buffer and commands only make Strings of what they need.
+ */
+final class CommandTable {
+	interface Command {
+		/** args is the offset of the first argument byte (== end when there is none). */
+		void execute(SocketHandler handler, byte[] line, int args, int end);
+	}
+
+	private static final class Entry {
+		final byte[] name;
+		final Command command;
+		final boolean admin;
+		final Entry next;
+
+		Entry(byte[] name, Command command, boolean admin, Entry next) {
+			this.name = name;
+			this.command = command;
+			this.admin = admin;
+			this.next = next;
+		}
+	}
+
+	// Copy-on-write: commands are registered at startup, looked up for every line
+	private volatile Entry[] buckets = new Entry[64];
+
+	void register(String name, Command command) {
+		register(name, false, command);
+	}
+
+	/** Admin commands are silently ignored for anyone but SocketHandler.isAdmin(). */
+	synchronized void register(String name, boolean admin, Command command) {
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		Entry[] updated = Arrays.copyOf(buckets, buckets.length);
+		int b = hash(key, 0, key.length) & (updated.length - 1);
+		Entry chain = null;
+		for (Entry e = updated[b]; e != null; e = e.next) {
+			if (!Arrays.equals(e.name, key)) {
+				chain = new Entry(e.name, e.command, e.admin, chain);
+			}
+		}
+		updated[b] = new Entry(key, command, admin, chain);
+		buckets = updated;
+	}
+
+	/**
+	 * Runs the command named by the first token of line[start, end).
+	 * Returns false if there is no such command (or it is not allowed).
+	 */
+	boolean dispatch(SocketHandler handler, byte[] line, int start, int end) {
+		int nameEnd = tokenEnd(line, start, end);
+		Entry[] table = buckets;
+		for (Entry e = table[hash(line, start, nameEnd) & (table.length - 1)]; e != null; e = e.next) {
+			if (Arrays.equals(e.name, 0, e.name.length, line, start, nameEnd)) {
+				if (e.admin && !handler.isAdmin()) {
+					return false;
+				}
+				e.command.execute(handler, line, skipSpace(line, nameEnd, end), end);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int hash(byte[] b, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			h = 31 * h + b[i];
+		}
+		return h ^ (h >>> 16);
+	}
+
+	// Same characters as the \s the protocol used to be split with
+	static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+	}
+
+	static int skipSpace(byte[] b, int i, int end) {
+		while (i < end && isSpace(b[i])) {
+			i++;
+		}
+		return i;
+	}
+
+	static int tokenEnd(byte[] b, int i, int end) {
+		while (i < end && !isSpace(b[i])) {
+			i++;
+		}
+		return i;
+	}
+
+	static boolean startsWith(byte[] b, int start, int end, byte[] prefix) {
+		return end - start >= prefix.length && Arrays.equals(b, start, start + prefix.length, prefix, 0, prefix.length);
+	}
+
+	static String string(byte[] b, int start, int end) {
+		return new String(b, start, end - start, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,146 @@
+package utb.fai;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import static utb.fai.CommandTable.*;
+
+/** The built-in line protocol commands. */
+final class Commands {
+	static final int DEFAULT_HISTORY = 20;
+	static final int MAX_HISTORY = 1000;
+
+	private Commands() {
+	}
+
+	static CommandTable defaults() {
+		CommandTable table = new CommandTable();
+		table.register("#setMyName", Commands::setMyName);
+		table.register("#sendPrivate", Commands::sendPrivate);
+		table.register("#join", Commands::join);
+		table.register("#leave", Commands::leave);
+		table.register("#groups", Commands::groups);
+		table.register("#history", Commands::history);
+		table.register("#compress", Commands::compress);
+		table.register("#ping", Commands::ping);
+		table.register("#pong", Commands::pong);
+		table.register("#session", Commands::session);
+		table.register("#trace", true, Commands::trace);
+		table.register("#loglevel", true, Commands::logLevel);
+		table.register("#stats", true, Commands::stats);
+		return table;
+	}
+
+	static void setMyName(SocketHandler h, byte[] line, int args, int end) {
+		if (args < end) {
+			h.activeHandlers.setName(h, string(line, args, end));
+		}
+	}
+
+	// #sendPrivate <name> <message>, the message bytes go out unchanged behind the sender prefix
+	static void sendPrivate(SocketHandler h, byte[] line, int args, int end) {
+		int nameEnd = tokenEnd(line, args, end);
+		int message = skipSpace(line, nameEnd, end);
+		if (args < nameEnd && message < end) {
+			h.activeHandlers.sendPrivate(string(line, args, nameEnd), Frame.message(Binary.PRIVATE, 0, h.senderId(), h.namePrefix, line, message, end), h);
+		}
+	}
+
+	static void join(SocketHandler h, byte[] line, int args, int end) {
+		if (args < end) {
+			h.activeHandlers.joinGroup(string(line, args, end), h);
+		}
+	}
+
+	static void leave(SocketHandler h, byte[] line, int args, int end) {
+		if (args < end) {
+			h.activeHandlers.leaveGroup(string(line, args, end), h);
+		}
+	}
+
+	static void groups(SocketHandler h, byte[] line, int args, int end) {
+		if (args != end) {
+			return;
+		}
+		Set<String> groups = h.activeHandlers.groupsOf(h);
+		h.deliver(Frame.of(groups.isEmpty() ? "" : String.join(",", groups)));
+	}
+
+	// #history <room> [N], the last N (default 20) messages of a room the user is in
+	static void history(SocketHandler h, byte[] line, int args, int end) {
+		History history = h.activeHandlers.history;
+		int roomEnd = tokenEnd(line, args, end);
+		if (history == null || args == roomEnd) {
+			return;
+		}
+		String room = string(line, args, roomEnd);
+		int id = h.activeHandlers.roomIds.find(room);
+		if (id == 0 || Arrays.binarySearch(h.userRooms, id) < 0) {
+			return;
+		}
+		int n = DEFAULT_HISTORY;
+		int count = skipSpace(line, roomEnd, end);
+		if (count < end) {
+			try {
+				n = Math.min(MAX_HISTORY, Integer.parseInt(string(line, count, end)));
+			} catch (NumberFormatException e) {
+				return;
+			}
+		}
+		history.replay(room, n, h);
+	}
+
+	static void compress(SocketHandler h, byte[] line, int args, int end) {
+		if (args == end) {
+			h.compress();
+		}
+	}
+
+	static void ping(SocketHandler h, byte[] line, int args, int end) {
+		h.deliver(Frame.of("#pong"));
+	}
+
+	// The answer to the server's #ping; any input already counts as activity
+	static void pong(SocketHandler h, byte[] line, int args, int end) {
+	}
+
+	static void session(SocketHandler h, byte[] line, int args, int end) {
+		if (args == end) {
+			h.startSession();
+		}
+	}
+
+	// #trace <name|clientID> on|off
+	static void trace(SocketHandler h, byte[] line, int args, int end) {
+		int targetEnd = tokenEnd(line, args, end);
+		int state = skipSpace(line, targetEnd, end);
+		if (args == targetEnd || state == end) {
+			return;
+		}
+		String targetName = string(line, args, targetEnd);
+		SocketHandler target = h.activeHandlers.find(targetName);
+		String id = target != null ? target.clientID : targetName;
+		boolean on = string(line, state, end).equalsIgnoreCase("on");
+		Log.trace(id, on);
+		h.deliver(Frame.of("trace " + (on ? "on" : "off") + " for " + id));
+	}
+
+	static void stats(SocketHandler h, byte[] line, int args, int end) {
+		for (String stat : Stats.lines(h.activeHandlers)) {
+			h.deliver(Frame.of(stat));
+		}
+	}
+
+	static void logLevel(SocketHandler h, byte[] line, int args, int end) {
+		if (args == end) {
+			return;
+		}
+		String level = string(line, args, end);
+		try {
+			Log.setLevel(Log.Level.valueOf(level.toUpperCase()));
+			h.deliver(Frame.of("log level " + level.toLowerCase()));
+		} catch (IllegalArgumentException e) {
+			h.deliver(Frame.of("unknown log level " + level));
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package utb.fai;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Deflate context of one connection's output after #compress. Each batch
+ * is deflated as a whole and ended with a sync flush, so the client can
+ * decode everything sent so far while the dictionary carries over from
+ * batch to batch. When the server is over its compression CPU budget, or
+ * the batch is tiny, the batch goes out as stored blocks instead: the
+ * stream stays valid and costs almost nothing to produce.
+ */
+final class Compressor {
+	private final Deflater deflater;
+	private final int level;
+	private final ServerConfig config;
+	private final Metrics metrics;
+	private final Budget budget;
+	private ByteBuffer out = ByteBuffer.allocate(16 * 1024);
+	private boolean storing = false;
+
+	Compressor(ServerConfig config, Metrics metrics, Budget budget) {
+		this.level = config.compressLevel;
+		this.deflater = new Deflater(level);
+		this.config = config;
+		this.metrics = metrics;
+		this.budget = budget;
+	}
+
+	/** Deflates batch[from, to); the result is valid until the next call. */
+	ByteBuffer compress(ByteBuffer[] batch, int from, int to) {
+		long start = System.nanoTime();
+		long bytes = 0;
+		for (int i = from; i < to; i++) {
+			bytes += batch[i].remaining();
+		}
+		boolean store = bytes < config.compressMinBytes || !budget.allows();
+		if (store != storing) {
+			// Takes effect with the next deflate call
+			deflater.setLevel(store ? Deflater.NO_COMPRESSION : level);
+			storing = store;
+		}
+		out.clear();
+		for (int i = from; i < to; i++) {
+			deflater.setInput(batch[i]);
+			while (!deflater.needsInput()) {
+				deflate(Deflater.NO_FLUSH);
+			}
+		}
+		// A full output buffer may hold back more of the flush
+		do {
+			deflate(Deflater.SYNC_FLUSH);
+		} while (!out.hasRemaining());
+		out.flip();
+		long nanos = System.nanoTime() - start;
+		budget.spent.add(nanos);
+		metrics.compressNanos.add(nanos);
+		metrics.compressBytesIn.add(bytes);
+		metrics.compressBytesOut.add(out.remaining());
+		if (store) {
+			metrics.compressSkipped.increment();
+		}
+		return out;
+	}
+
+	private void deflate(int flush) {
+		if (!out.hasRemaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(out.capacity() * 2);
+			out.flip();
+			out = larger.put(out);
+		}
+		deflater.deflate(out, flush);
+	}
+
+	void end() {
+		deflater.end();
+	}
+
+	/** Time all connections may spend compressing per second, server-wide. */
+	static final class Budget {
+		private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+		private final long limit;
+		private final LongAdder spent = new LongAdder();
+		private volatile long windowStart = System.nanoTime();
+
+		Budget(ServerConfig config) {
+			this.limit = WINDOW * config.compressBudgetPercent / 100;
+		}
+
+		boolean allows() {
+			long now = System.nanoTime();
+			if (now - windowStart >= WINDOW) {
+				// Racing resets only lose a little of the next window's accounting
+				windowStart = now;
+				spent.reset();
+			}
+			return spent.sum() < limit;
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package utb.fai;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One outgoing protocol line, framed with CRLF and UTF-8 encoded exactly once.
+ * The same instance is queued for every recipient; each writer takes its own
+ * read-only view, so the bytes are never copied per recipient.
+ * <p>
+ * A frame may instead be in the binary framing (see Binary). Either kind
+ * knows what it carries, so the other framing is built from the payload
+ * bytes the first time a recipient needs it and then shared the same way.
+ */
+final class Frame {
+	private static final byte[] NO_PREFIX = new byte[0];
+
+	private final ByteBuffer data;
+	// System.nanoTime() when the frame was built, the start of its receive-to-write latency
+	final long created;
+
+	// What the frame carries; Binary.LINE for anything that is just text lines
+	private final boolean binary;
+	private final byte opcode;
+	private final int room;
+	private final int sender;
+	// Where the payload starts, behind the sender prefix or the binary header
+	private final int payload;
+	// The sender prefix of a binary message, for its text framing; empty for one converted from text
+	private final byte[] prefix;
+	private volatile Frame other;
+
+	private Frame(byte[] bytes) {
+		this(ByteBuffer.wrap(bytes).asReadOnlyBuffer(), System.nanoTime(), false, Binary.LINE, 0, 0, 0, null);
+	}
+
+	private Frame(ByteBuffer data, long created, boolean binary, byte opcode, int room, int sender, int payload,
+			byte[] prefix) {
+		this.data = data;
+		this.created = created;
+		this.binary = binary;
+		this.opcode = opcode;
+		this.room = room;
+		this.sender = sender;
+		this.payload = payload;
+		this.prefix = prefix;
+	}
+
+	/** An already framed line, e.g. straight from a mapped history file; not copied. */
+	static Frame wrap(ByteBuffer framed) {
+		return new Frame(framed.slice().asReadOnlyBuffer(), System.nanoTime(), false, Binary.LINE, 0, 0, 0, null);
+	}
+
+	static Frame of(String line) {
+		byte[] bytes = new byte[utf8Length(line, 0, line.length()) + 2];
+		int end = encodeUtf8(line, 0, line.length(), bytes, 0);
+		bytes[end] = '\r';
+		bytes[end + 1] = '\n';
+		return new Frame(bytes);
+	}
+
+	/** prefix + body[start, end) + CRLF, the body already being UTF-8. */
+	static Frame of(byte[] prefix, byte[] body, int start, int end) {
+		return message(Binary.LINE, 0, 0, prefix, body, start, end);
+	}
+
+	/** A user's chat or private message from the text protocol, see of(byte[], byte[], int, int). */
+	static Frame message(byte opcode, int room, int sender, byte[] prefix, byte[] body, int start, int end) {
+		byte[] bytes = new byte[prefix.length + end - start + 2];
+		System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+		System.arraycopy(body, start, bytes, prefix.length, end - start);
+		bytes[bytes.length - 2] = '\r';
+		bytes[bytes.length - 1] = '\n';
+		return new Frame(ByteBuffer.wrap(bytes).asReadOnlyBuffer(), System.nanoTime(), false, opcode, room, sender,
+				prefix.length, null);
+	}
+
+	/** A message from the binary protocol, payload[start, end) copied once behind a fresh header. */
+	static Frame binary(byte opcode, int room, int sender, byte[] prefix, byte[] payload, int start, int end) {
+		byte[] bytes = new byte[Binary.LENGTH + Binary.HEADER + end - start];
+		int pos = Binary.header(bytes, 0, opcode, room, sender, end - start);
+		System.arraycopy(payload, start, bytes, pos, end - start);
+		return new Frame(ByteBuffer.wrap(bytes).asReadOnlyBuffer(), System.nanoTime(), true, opcode, room, sender, pos,
+				prefix);
+	}
+
+	/** A server reply only binary clients get, e.g. the id of a joined room. */
+	static Frame binary(byte opcode, int room, int sender, String payload) {
+		byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+		return binary(opcode, room, sender, new byte[0], bytes, 0, bytes.length);
+	}
+
+	/** This frame in the text framing. */
+	Frame text() {
+		if (!binary) {
+			return this;
+		}
+		Frame text = other;
+		if (text == null) {
+			int length = data.capacity() - payload;
+			byte[] bytes = new byte[prefix.length + length + 2];
+			System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+			data.get(payload, bytes, prefix.length, length);
+			bytes[bytes.length - 2] = '\r';
+			bytes[bytes.length - 1] = '\n';
+			other = text = new Frame(ByteBuffer.wrap(bytes).asReadOnlyBuffer(), created, false, opcode, room, sender,
+					prefix.length, null);
+		}
+		return text;
+	}
+
+	/** This frame in the binary framing; text that is not a user's message becomes one LINE per line. */
+	Frame binary() {
+		if (binary) {
+			return this;
+		}
+		Frame converted = other;
+		if (converted == null) {
+			converted = opcode == Binary.LINE ? lines() : message();
+			// Converting back gives this frame rather than rebuilding it
+			converted.other = this;
+			other = converted;
+		}
+		return converted;
+	}
+
+	private Frame message() {
+		int length = data.capacity() - payload - 2;
+		byte[] bytes = new byte[Binary.LENGTH + Binary.HEADER + length];
+		int pos = Binary.header(bytes, 0, opcode, room, sender, length);
+		data.get(payload, bytes, pos, length);
+		return new Frame(ByteBuffer.wrap(bytes).asReadOnlyBuffer(), created, true, opcode, room, sender, pos,
+				NO_PREFIX);
+	}
+
+	private Frame lines() {
+		byte[] text = new byte[data.capacity()];
+		data.get(0, text);
+		int count = 0;
+		for (byte b : text) {
+			if (b == '\n') {
+				count++;
+			}
+		}
+		// Each line end gives way to a header
+		byte[] bytes = new byte[text.length + count * (Binary.LENGTH + Binary.HEADER - 1)];
+		int pos = 0;
+		int start = 0;
+		for (int i = 0; i < text.length; i++) {
+			if (text[i] == '\n') {
+				int end = i > start && text[i - 1] == '\r' ? i - 1 : i;
+				pos = Binary.header(bytes, pos, Binary.LINE, 0, 0, end - start);
+				System.arraycopy(text, start, bytes, pos, end - start);
+				pos += end - start;
+				start = i + 1;
+			}
+		}
+		return new Frame(ByteBuffer.wrap(bytes, 0, pos).slice().asReadOnlyBuffer(), created, true, Binary.LINE, 0, 0,
+				Binary.LENGTH + Binary.HEADER, NO_PREFIX);
+	}
+
+	/** The user id of a message's sender, 0 for server lines. */
+	int sender() {
+		return sender;
+	}
+
+	/** A fresh read-only view positioned at the start of the frame. */
+	ByteBuffer buffer() {
+		return data.duplicate();
+	}
+
+	int length() {
+		return data.capacity();
+	}
+
+	@Override
+	public String toString() {
+		if (binary) {
+			return text().toString();
+		}
+		ByteBuffer b = buffer();
+		b.limit(b.limit() - 2);
+		return StandardCharsets.UTF_8.decode(b).toString();
+	}
+
+	static int utf8Length(CharSequence s, int start, int end) {
+		int n = 0;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				n++;
+			} else if (c < 0x800) {
+				n += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+				n += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				n++; // replaced by '?', as String.getBytes does
+			} else {
+				n += 3;
+			}
+		}
+		return n;
+	}
+
+	static int encodeUtf8(CharSequence s, int start, int end, byte[] out, int pos) {
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				out[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				out[pos++] = (byte) (0xC0 | (c >> 6));
+				out[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				out[pos++] = (byte) (0xF0 | (cp >> 18));
+				out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				out[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				out[pos++] = '?';
+			} else {
+				out[pos++] = (byte) (0xE0 | (c >> 12));
+				out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				out[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return pos;
+	}
+}
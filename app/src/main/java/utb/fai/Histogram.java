@@ -0,0 +1,68 @@
+package utb.fai;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Power-of-two bucketed histogram for non-negative values. Recording is a
+ * couple of LongAdder increments, so it is cheap enough for the hot path;
+ * percentiles are reported as the upper bound of the matching bucket.
+ */
+class Histogram {
+	private final LongAdder[] buckets = new LongAdder[65];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	Histogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+		count.increment();
+		sum.add(value);
+	}
+
+	long count() {
+		return count.sum();
+	}
+
+	long sum() {
+		return sum.sum();
+	}
+
+	double mean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	long percentile(double p) {
+		long[] snapshot = new long[buckets.length];
+		long total = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			snapshot[i] = buckets[i].sum();
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(p / 100.0 * total);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	String summary() {
+		return String.format("count=%d mean=%.1f p50<=%d p99<=%d max<=%d",
+				count(), mean(), percentile(50), percentile(99), percentile(100));
+	}
+}
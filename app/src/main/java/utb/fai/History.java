@@ -0,0 +1,165 @@
+package utb.fai;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Recent messages of every room, kept in a RoomLog per room under one
+ * directory (room names hex-encoded). Broadcasters only hand frames to a
+ * bounded queue, a single background thread writes them; when it falls
+ * behind, frames are left out of the history and counted, the broadcast
+ * never waits.
+ */
+final class History {
+	static final int QUEUE_CAPACITY = 16 * 1024;
+	private static final long RETAIN_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private static final class Pending {
+		final String room;
+		final Frame frame;
+		final long time;
+
+		Pending(String room, Frame frame, long time) {
+			this.room = room;
+			this.frame = frame;
+			this.time = time;
+		}
+	}
+
+	private final Path dir;
+	private final ServerConfig config;
+	private final Metrics metrics;
+	private final ConcurrentHashMap<String, RoomLog> logs = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private long lastRetain = System.nanoTime();
+
+	/** Recovers the logs already in config.historyDir. */
+	History(ServerConfig config, Metrics metrics) throws IOException {
+		this.dir = Paths.get(config.historyDir);
+		this.config = config;
+		this.metrics = metrics;
+		Files.createDirectories(dir);
+		try (Stream<Path> rooms = Files.list(dir)) {
+			for (Path roomDir : rooms.filter(Files::isDirectory).toList()) {
+				String room = new String(HexFormat.of().parseHex(roomDir.getFileName().toString()), StandardCharsets.UTF_8);
+				logs.put(room, RoomLog.open(roomDir, config.historySegmentBytes));
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unexpected directory in " + dir, e);
+		}
+		retain();
+	}
+
+	int rooms() {
+		return logs.size();
+	}
+
+	void start() {
+		Thread writer = new Thread(this::writeLoop, "history-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/** Called for every broadcast, never blocks. */
+	void append(String room, Frame frame) {
+		if (queued.incrementAndGet() > QUEUE_CAPACITY) {
+			queued.decrementAndGet();
+			metrics.historyDropped.increment();
+			return;
+		}
+		queue.add(new Pending(room, frame, System.currentTimeMillis()));
+	}
+
+	/** Queues the last n messages of room for handler; returns how many were delivered. */
+	int replay(String room, int n, SocketHandler handler) {
+		RoomLog log = logs.get(room);
+		if (log == null || n <= 0) {
+			return 0;
+		}
+		List<ByteBuffer> frames = log.last(n);
+		// Only the newest messages that fit into the client's queue, an overflowing replay would drop the rest
+		long space = handler.messages.space(OutboundQueue.Lane.ROOM);
+		int first = frames.size();
+		while (first > 0 && frames.get(first - 1).remaining() <= space) {
+			space -= frames.get(--first).remaining();
+		}
+		int delivered = 0;
+		for (ByteBuffer frame : frames.subList(first, frames.size())) {
+			if (!handler.deliver(Frame.wrap(frame), OutboundQueue.Lane.ROOM)) {
+				break;
+			}
+			delivered++;
+		}
+		metrics.historyReplayed.add(delivered);
+		return delivered;
+	}
+
+	private void writeLoop() {
+		while (true) {
+			if (!drain()) {
+				LockSupport.parkNanos(1_000_000);
+			}
+			if (System.nanoTime() - lastRetain >= RETAIN_INTERVAL) {
+				retain();
+			}
+		}
+	}
+
+	private synchronized boolean drain() {
+		boolean any = false;
+		Pending p;
+		while ((p = queue.poll()) != null) {
+			queued.decrementAndGet();
+			any = true;
+			try {
+				RoomLog log = logs.get(p.room);
+				if (log == null) {
+					log = RoomLog.open(roomDir(p.room), config.historySegmentBytes);
+					logs.put(p.room, log);
+				}
+				if (log.append(p.frame, p.time)) {
+					metrics.historyAppended.increment();
+				}
+			} catch (IOException e) {
+				metrics.historyDropped.increment();
+				Log.warn("Appending to the history of %s failed", p.room, e);
+			}
+		}
+		return any;
+	}
+
+	private synchronized void retain() {
+		lastRetain = System.nanoTime();
+		long minTime = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(config.historyMaxAgeSeconds);
+		logs.forEach((room, log) -> {
+			try {
+				log.retain(config.historyMaxBytes, minTime);
+			} catch (IOException e) {
+				Log.warn("Trimming the history of %s failed", room, e);
+			}
+		});
+	}
+
+	private Path roomDir(String room) {
+		return dir.resolve(HexFormat.of().formatHex(room.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/** Writes out everything queued and flushes the mapped files; used on shutdown. */
+	synchronized void close() {
+		drain();
+		logs.values().forEach(RoomLog::force);
+	}
+}
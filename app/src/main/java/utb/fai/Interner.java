@@ -0,0 +1,97 @@
+package utb.fai;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Small ids for names, kept only while something holds them: each holder
+ * (a room member, a user who has sent a message) acquires the id and
+ * releases it when done, and the last release frees it. Freed ids wait
+ * behind QUARANTINE others before they are handed out again, so an id still
+ * in flight or remembered by a client is unlikely to meet its next name
+ * soon. Id 0 means none.
+ */
+final class Interner {
+	static final int QUARANTINE = 1024;
+
+	private static final class Entry {
+		final int id;
+		int holders = 0;
+
+		Entry(int id) {
+			this.id = id;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> ids = new ConcurrentHashMap<>();
+	private volatile String[] names = new String[64];
+	private int next = 1;
+	private final ArrayDeque<Integer> free = new ArrayDeque<>();
+
+	/** The name's id, assigned if it has none, with one more hold on it. */
+	int acquire(String name) {
+		return ids.compute(name, (n, entry) -> {
+			if (entry == null) {
+				entry = new Entry(assign(n));
+			}
+			entry.holders++;
+			return entry;
+		}).id;
+	}
+
+	/** Gives up one hold on the id; the last one frees it. */
+	void release(int id) {
+		String name = name(id);
+		if (name == null) {
+			return;
+		}
+		ids.computeIfPresent(name, (n, entry) -> {
+			if (entry.id != id || --entry.holders > 0) {
+				return entry;
+			}
+			recycle(id);
+			return null;
+		});
+	}
+
+	/** The name's id without taking a hold, 0 when it has none. */
+	int find(String name) {
+		Entry entry = ids.get(name);
+		return entry != null ? entry.id : 0;
+	}
+
+	// Called under the map's lock for the name; ids themselves are assigned and freed one at a time
+	private synchronized int assign(String name) {
+		int id;
+		String[] current = names;
+		if (free.size() > QUARANTINE) {
+			id = free.poll();
+		} else {
+			id = next++;
+			if (id == current.length) {
+				current = Arrays.copyOf(current, current.length * 2);
+			}
+		}
+		current[id] = name;
+		names = current;
+		return id;
+	}
+
+	private synchronized void recycle(int id) {
+		String[] current = names;
+		current[id] = null;
+		names = current;
+		free.add(id);
+	}
+
+	/** The name behind an id, or null for an id not held. */
+	String name(int id) {
+		String[] current = names;
+		return id > 0 && id < current.length ? current[id] : null;
+	}
+
+	int size() {
+		return ids.size();
+	}
+}
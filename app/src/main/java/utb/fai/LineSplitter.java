@@ -0,0 +1,227 @@
+package utb.fai;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Splits incoming bytes into lines the way BufferedReader.readLine does
+ * (\n, \r or \r\n). A line that arrived whole is handed out straight from the
+ * read buffer; only a line split across reads is copied into the carry-over,
+ * which exists only until that line is handed out.
+ * Once switched to binary, it hands out length-prefixed frames instead (see
+ * Binary), without the length. Once switched to compressed, the input is
+ * inflated first.
+ */
+final class LineSplitter {
+	static final int MAX_LINE = 64 * 1024;
+
+	interface Sink {
+		/** Returns false to stop processing further lines. */
+		boolean line(byte[] buf, int start, int end);
+	}
+
+	private byte[] carry;
+	private int carried = 0;
+	private boolean skipLF = false;
+	private boolean binary = false;
+	private boolean inflateNext = false;
+	private Inflater inflater;
+	private ByteBuffer inflated;
+	// The line before the switch to compressed input ended with CR, and its LF may follow uncompressed
+	private boolean skipRawLF = false;
+
+	/** Everything after the current line is binary frames; called by the sink. */
+	void binary() {
+		binary = true;
+	}
+
+	/** Everything after the current line is a deflate stream; called by the sink. */
+	void inflate() {
+		inflateNext = true;
+	}
+
+	/**
+	 * Consumes everything in the heap buffer (which is left cleared for the
+	 * next read). Returns false if a line grew beyond MAX_LINE or the sink
+	 * asked to stop.
+	 */
+	boolean feed(ByteBuffer in, Sink sink) {
+		byte[] a = in.array();
+		int pos = in.arrayOffset() + in.position();
+		int limit = in.arrayOffset() + in.limit();
+		in.clear();
+		return inflater != null ? inflate(a, pos, limit, sink) : split(a, pos, limit, sink);
+	}
+
+	private boolean split(byte[] a, int pos, int limit, Sink sink) {
+		if (binary) {
+			return frames(a, pos, limit, sink);
+		}
+		int lineStart = pos;
+		for (int i = pos; i < limit; i++) {
+			byte b = a[i];
+			if (b != '\n' && b != '\r') {
+				skipLF = false;
+				continue;
+			}
+			if (b == '\n' && skipLF) {
+				skipLF = false;
+				lineStart = i + 1;
+				continue;
+			}
+			skipLF = b == '\r';
+			boolean more;
+			if (carried == 0) {
+				more = sink.line(a, lineStart, i);
+			} else {
+				if (!append(a, lineStart, i)) {
+					return false;
+				}
+				int length = carried;
+				carried = 0;
+				more = sink.line(carry, 0, length);
+				carry = null;
+			}
+			if (!more) {
+				return false;
+			}
+			if (inflateNext) {
+				return startInflating(a, i + 1, limit, sink);
+			}
+			if (binary) {
+				return frames(a, i + 1, limit, sink);
+			}
+			lineStart = i + 1;
+		}
+		return append(a, lineStart, limit);
+	}
+
+	private boolean frames(byte[] a, int pos, int limit, LineSplitter.Sink sink) {
+		if (skipLF && pos < limit) {
+			// The handshake line ended with CRLF
+			skipLF = false;
+			if (a[pos] == '\n') {
+				pos++;
+			}
+		}
+		while (pos < limit) {
+			if (carried == 0 && limit - pos >= Binary.LENGTH) {
+				int length = Binary.getInt(a, pos);
+				if (length < 0 || length > MAX_LINE - Binary.LENGTH) {
+					return false;
+				}
+				int end = pos + Binary.LENGTH + length;
+				if (end <= limit) {
+					if (!sink.line(a, pos + Binary.LENGTH, end)) {
+						return false;
+					}
+					pos = end;
+					if (inflateNext) {
+						return startInflating(a, pos, limit, sink);
+					}
+					continue;
+				}
+			}
+			// Split across reads: complete the length first, then the rest of the frame
+			if (carried < Binary.LENGTH) {
+				int n = Math.min(Binary.LENGTH - carried, limit - pos);
+				append(a, pos, pos + n);
+				pos += n;
+				if (carried < Binary.LENGTH) {
+					break;
+				}
+			}
+			int length = Binary.getInt(carry, 0);
+			if (length < 0 || length > MAX_LINE - Binary.LENGTH) {
+				return false;
+			}
+			int n = Math.min(Binary.LENGTH + length - carried, limit - pos);
+			append(a, pos, pos + n);
+			pos += n;
+			if (carried == Binary.LENGTH + length) {
+				carried = 0;
+				boolean more = sink.line(carry, Binary.LENGTH, Binary.LENGTH + length);
+				carry = null;
+				if (!more) {
+					return false;
+				}
+				if (inflateNext) {
+					return startInflating(a, pos, limit, sink);
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean startInflating(byte[] a, int pos, int limit, Sink sink) {
+		inflateNext = false;
+		inflater = new Inflater();
+		inflated = ByteBuffer.allocate(8192);
+		skipRawLF = skipLF && !binary;
+		skipLF = false;
+		return inflate(a, pos, limit, sink);
+	}
+
+	private boolean inflate(byte[] a, int pos, int limit, Sink sink) {
+		if (skipRawLF && pos < limit) {
+			skipRawLF = false;
+			if (a[pos] == '\n') {
+				pos++;
+			}
+		}
+		if (pos == limit || inflater.finished()) {
+			return true;
+		}
+		inflater.setInput(a, pos, limit - pos);
+		try {
+			// Everything is inflated before returning, the input array is the caller's read buffer
+			while (!inflater.needsInput() && !inflater.finished()) {
+				int n = inflater.inflate(inflated.array(), 0, inflated.capacity());
+				if (n == 0 && !inflater.needsInput() && !inflater.finished()) {
+					return false; // wants a preset dictionary
+				}
+				if (!split(inflated.array(), 0, n, sink)) {
+					return false;
+				}
+			}
+		} catch (DataFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/** Delivers a final unterminated line at end of stream. */
+	void finish(Sink sink) {
+		if (inflater != null) {
+			inflater.end();
+		}
+		if (binary) {
+			carried = 0; // a partial frame is of no use
+		} else if (carried > 0) {
+			int length = carried;
+			carried = 0;
+			sink.line(carry, 0, length);
+		}
+		carry = null;
+	}
+
+	private boolean append(byte[] a, int start, int end) {
+		int n = end - start;
+		if (n == 0) {
+			return true;
+		}
+		if (carried + n > MAX_LINE) {
+			return false;
+		}
+		if (carry == null) {
+			carry = new byte[Math.max(128, n)];
+		} else if (carried + n > carry.length) {
+			carry = Arrays.copyOf(carry, Math.min(MAX_LINE, Math.max(carried + n, carry.length * 2)));
+		}
+		System.arraycopy(a, start, carry, carried, n);
+		carried += n;
+		return true;
+	}
+}
@@ -0,0 +1,229 @@
+package utb.fai;
+
+import java.io.*;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger. Callers check the level first and then only publish
+ * the format string and its arguments into a bounded lock-free ring; a single
+ * background thread formats and writes them. When the ring is full records
+ * are dropped and counted rather than blocking a connection thread.
+ */
+final class Log {
+	enum Level {
+		ERROR, WARN, INFO, DEBUG, TRACE
+	}
+
+	private static volatile Level level = Level.INFO;
+	private static final Set<String> tracedClients = ConcurrentHashMap.newKeySet();
+	private static volatile boolean anyTraced = false;
+	static final LongAdder dropped = new LongAdder();
+
+	private static volatile Ring ring = new Ring(8192);
+	private static volatile PrintStream out = System.out;
+	private static Thread writer;
+
+	private Log() {
+	}
+
+	static void configure(Level newLevel, String file, int bufferSize) throws IOException {
+		level = newLevel;
+		ring = new Ring(bufferSize);
+		if (file != null) {
+			out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024), false, "UTF-8");
+		}
+	}
+
+	static synchronized void start() {
+		if (writer != null) {
+			return;
+		}
+		writer = new Thread(Log::drainLoop, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/** Writes everything published so far; used on shutdown. */
+	static synchronized void flush() {
+		drain();
+		out.flush();
+	}
+
+	static void setLevel(Level newLevel) {
+		level = newLevel;
+	}
+
+	static boolean enabled(Level l) {
+		return l.compareTo(level) <= 0;
+	}
+
+	/** Debug tracing for one connection, regardless of the global level. */
+	static boolean traced(String clientID) {
+		return enabled(Level.DEBUG) || (anyTraced && tracedClients.contains(clientID));
+	}
+
+	static void trace(String clientID, boolean on) {
+		if (on) {
+			tracedClients.add(clientID);
+		} else {
+			tracedClients.remove(clientID);
+		}
+		anyTraced = !tracedClients.isEmpty();
+	}
+
+	static void error(String format, Object... args) {
+		if (enabled(Level.ERROR)) {
+			publish(Level.ERROR, format, args);
+		}
+	}
+
+	static void warn(String format, Object... args) {
+		if (enabled(Level.WARN)) {
+			publish(Level.WARN, format, args);
+		}
+	}
+
+	static void info(String format, Object... args) {
+		if (enabled(Level.INFO)) {
+			publish(Level.INFO, format, args);
+		}
+	}
+
+	static void debug(String format, Object... args) {
+		if (enabled(Level.DEBUG)) {
+			publish(Level.DEBUG, format, args);
+		}
+	}
+
+	// Fixed arity, so the per-line hot path allocates nothing unless the client is traced
+	static void debugClient(String clientID, String format, Object a) {
+		if (traced(clientID)) {
+			publish(Level.DEBUG, format, new Object[] { a });
+		}
+	}
+
+	static void debugClient(String clientID, String format, Object a, Object b) {
+		if (traced(clientID)) {
+			publish(Level.DEBUG, format, new Object[] { a, b });
+		}
+	}
+
+	static void publish(Level l, String format, Object[] args) {
+		if (!ring.offer(l, System.currentTimeMillis(), format, args)) {
+			dropped.increment();
+		}
+	}
+
+	private static void drainLoop() {
+		while (true) {
+			if (!drain()) {
+				out.flush();
+				LockSupport.parkNanos(1_000_000);
+			}
+		}
+	}
+
+	private static synchronized boolean drain() {
+		Ring r = ring;
+		boolean any = false;
+		while (r.poll(Log::write)) {
+			any = true;
+		}
+		return any;
+	}
+
+	private static void write(Level l, long time, String format, Object[] args) {
+		String message;
+		try {
+			message = args.length == 0 ? format : String.format(format, args);
+		} catch (RuntimeException e) {
+			message = format;
+		}
+		out.print(Instant.ofEpochMilli(time));
+		out.print(' ');
+		out.print(l);
+		out.print(' ');
+		out.println(message);
+		for (Object arg : args) {
+			if (arg instanceof Throwable) {
+				((Throwable) arg).printStackTrace(out);
+			}
+		}
+	}
+
+	interface Sink {
+		void write(Level level, long time, String format, Object[] args);
+	}
+
+	/**
+	 * Bounded multi-producer ring after Vyukov: producers claim a slot with one
+	 * CAS on the tail, the slot's sequence number publishes it to the consumer.
+	 */
+	static final class Ring {
+		private final Slot[] slots;
+		private final int mask;
+		private final AtomicLong tail = new AtomicLong();
+		private long head = 0;
+
+		private static final class Slot {
+			volatile long sequence;
+			Level level;
+			long time;
+			String format;
+			Object[] args;
+		}
+
+		Ring(int capacity) {
+			int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+			slots = new Slot[size];
+			mask = size - 1;
+			for (int i = 0; i < size; i++) {
+				slots[i] = new Slot();
+				slots[i].sequence = i;
+			}
+		}
+
+		boolean offer(Level level, long time, String format, Object[] args) {
+			while (true) {
+				long t = tail.get();
+				Slot slot = slots[(int) t & mask];
+				long diff = slot.sequence - t;
+				if (diff == 0) {
+					if (tail.compareAndSet(t, t + 1)) {
+						slot.level = level;
+						slot.time = time;
+						slot.format = format;
+						slot.args = args;
+						slot.sequence = t + 1;
+						return true;
+					}
+				} else if (diff < 0) {
+					return false;
+				}
+			}
+		}
+
+		/** Single consumer. */
+		boolean poll(Sink sink) {
+			Slot slot = slots[(int) head & mask];
+			if (slot.sequence != head + 1) {
+				return false;
+			}
+			Level l = slot.level;
+			long time = slot.time;
+			String format = slot.format;
+			Object[] args = slot.args;
+			slot.format = null;
+			slot.args = null;
+			slot.sequence = head + slots.length;
+			head++;
+			sink.write(l, time, format, args);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package utb.fai;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters, shared through ActiveHandlers and updated from every
+ * connection thread. Gauges that need a walk over all connections (queue
+ * depths, rooms) are not kept here but computed on demand by Stats.
+ */
+class Metrics {
+	// Connections by phase: accepted but not named yet, and named
+	final LongAdder connectionsAccepted = new LongAdder();
+	final LongAdder connectionsPreName = new LongAdder();
+	final LongAdder connectionsNamed = new LongAdder();
+
+	// Connections turned away at accept, see Admission
+	final LongAdder rejectedFull = new LongAdder();
+	final LongAdder rejectedAddress = new LongAdder();
+	// Lines and broadcasts dropped by the per-connection rate limits
+	final LongAdder linesLimited = new LongAdder();
+	final LongAdder broadcastsLimited = new LongAdder();
+
+	// Connections closed by the timeouts and pings sent to silent ones, see SocketHandler.checkTimeouts
+	final LongAdder timeoutsIdle = new LongAdder();
+	final LongAdder timeoutsName = new LongAdder();
+	final LongAdder timeoutsWriteStall = new LongAdder();
+	final LongAdder pingsSent = new LongAdder();
+
+	// Resumable sessions, see Sessions; detached is a gauge of those waiting for a resume
+	final LongAdder sessionsOpened = new LongAdder();
+	final LongAdder sessionsDetached = new LongAdder();
+	final LongAdder sessionsResumed = new LongAdder();
+	final LongAdder sessionsExpired = new LongAdder();
+
+	// Non-empty lines received
+	final LongAdder messagesIn = new LongAdder();
+	final Rate messagesInRate = new Rate(messagesIn);
+	// Recipients per broadcast
+	final Histogram fanout = new Histogram();
+
+	// Output batches: one gathering write per batch
+	final LongAdder batches = new LongAdder();
+	final LongAdder framesWritten = new LongAdder();
+	final Rate framesWrittenRate = new Rate(framesWritten);
+	final LongAdder bytesWritten = new LongAdder();
+	final Histogram batchFrames = new Histogram();
+	final Histogram batchBytes = new Histogram();
+	// Nanoseconds from building the oldest frame of a batch until the batch is written
+	final Histogram writeLatency = new Histogram();
+	// Nanoseconds from building a frame until the writer takes it, per OutboundQueue.Lane
+	final Histogram[] queueLatency = { new Histogram(), new Histogram(), new Histogram() };
+	// Read buffers lent out, and those of them the BufferPool had none idle for
+	final LongAdder buffersAcquired = new LongAdder();
+	final LongAdder buffersAllocated = new LongAdder();
+
+	// Room history, see History
+	final LongAdder historyAppended = new LongAdder();
+	final LongAdder historyDropped = new LongAdder();
+	final LongAdder historyReplayed = new LongAdder();
+
+	// Private messages kept for absent users, see OfflineStore
+	final LongAdder offlineStored = new LongAdder();
+	final LongAdder offlineDelivered = new LongAdder();
+	final LongAdder offlineEvicted = new LongAdder();
+
+	// Messages sent to and received from other nodes, see Cluster
+	final LongAdder peerForwarded = new LongAdder();
+	final LongAdder peerReceived = new LongAdder();
+	final LongAdder peerDropped = new LongAdder();
+
+	// Output of connections after #compress, see Compressor
+	final LongAdder compressBytesIn = new LongAdder();
+	final LongAdder compressBytesOut = new LongAdder();
+	final LongAdder compressNanos = new LongAdder();
+	final LongAdder compressSkipped = new LongAdder();
+
+	// Outbound queue overflow, see QueuePolicy
+	final LongAdder droppedNewest = new LongAdder();
+	final LongAdder droppedOldest = new LongAdder();
+	final LongAdder skippedStalled = new LongAdder();
+	final LongAdder evictions = new LongAdder();
+
+	void recordBatch(int frames, long bytes) {
+		batches.increment();
+		framesWritten.add(frames);
+		bytesWritten.add(bytes);
+		batchFrames.record(frames);
+		batchBytes.record(bytes);
+	}
+
+	/** Called once the batch starting with a frame built at created has been written out completely. */
+	void recordWritten(long created) {
+		writeLatency.record(System.nanoTime() - created);
+	}
+
+	void connectionNamed() {
+		connectionsPreName.decrement();
+		connectionsNamed.increment();
+	}
+
+	/**
+	 * Per-second rate of a counter, over the time since it was last read
+	 * (but at least a second, so frequent readers see the same value).
+	 */
+	static final class Rate {
+		private static final long MIN_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+		private final LongAdder counter;
+		private long lastCount = 0;
+		private long lastTime = System.nanoTime();
+		private double perSecond = 0;
+
+		Rate(LongAdder counter) {
+			this.counter = counter;
+		}
+
+		synchronized double perSecond() {
+			long now = System.nanoTime();
+			if (now - lastTime >= MIN_INTERVAL) {
+				long count = counter.sum();
+				perSecond = (count - lastCount) * 1e9 / (now - lastTime);
+				lastCount = count;
+				lastTime = now;
+			}
+			return perSecond;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "connections accepted=" + connectionsAccepted.sum() + " messages in=" + messagesIn.sum() + "\n"
+				+ "batches=" + batches.sum() + " frames=" + framesWritten.sum() + " bytes=" + bytesWritten.sum() + "\n"
+				+ "batch frames: " + batchFrames.summary() + "\n"
+				+ "batch bytes: " + batchBytes.summary() + "\n"
+				+ "fanout: " + fanout.summary() + "\n"
+				+ "write latency ns: " + writeLatency.summary() + "\n"
+				+ "dropped newest=" + droppedNewest.sum() + " dropped oldest=" + droppedOldest.sum()
+				+ " skipped stalled=" + skippedStalled.sum() + " evictions=" + evictions.sum();
+	}
+}
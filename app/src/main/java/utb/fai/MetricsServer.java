@@ -0,0 +1,48 @@
+package utb.fai;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves Stats as plaintext on http://localhost:PORT/metrics. It is bound to
+ * the loopback address only, the numbers are for whoever runs the server.
+ */
+class MetricsServer {
+	private final ActiveHandlers activeHandlers;
+	private HttpServer server;
+
+	MetricsServer(ActiveHandlers activeHandlers) {
+		this.activeHandlers = activeHandlers;
+	}
+
+	void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", this::scrape);
+		server.start();
+	}
+
+	private void scrape(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			StringBuilder body = new StringBuilder();
+			for (String line : Stats.lines(activeHandlers)) {
+				body.append(line).append('\n');
+			}
+			byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, bytes.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+		}
+	}
+}
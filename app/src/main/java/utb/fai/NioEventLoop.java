@@ -0,0 +1,119 @@
+package utb.fai;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One selector thread. Everything touching a registered channel runs here,
+ * other threads hand work over through {@link #execute(Runnable)}.
+ */
+class NioEventLoop implements Runnable {
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private final ActiveHandlers activeHandlers;
+	private volatile Thread thread;
+	// Loop-thread only; every caller uses the same delay, so deadlines are already in order
+	private final ArrayDeque<Delayed> delayed = new ArrayDeque<>();
+
+	private static final class Delayed {
+		final long deadline;
+		final Runnable task;
+
+		Delayed(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+	}
+
+	NioEventLoop(ActiveHandlers activeHandlers) throws IOException {
+		this.selector = Selector.open();
+		this.activeHandlers = activeHandlers;
+	}
+
+	void execute(Runnable task) {
+		tasks.add(task);
+		if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/** Runs task on this loop after the delay; must be called from the loop thread. */
+	void schedule(Runnable task, long delayNanos) {
+		delayed.add(new Delayed(System.nanoTime() + delayNanos, task));
+	}
+
+	void register(SocketChannel channel) {
+		NioSocketHandler handler = new NioSocketHandler(channel, activeHandlers, this);
+		execute(() -> {
+			try {
+				handler.key = channel.register(selector, SelectionKey.OP_READ, handler);
+			} catch (ClosedChannelException e) {
+				activeHandlers.admission.release(channel.socket().getInetAddress());
+				return;
+			}
+			activeHandlers.add(handler);
+		});
+	}
+
+	public void run() {
+		thread = Thread.currentThread();
+		while (selector.isOpen()) {
+			try {
+				Delayed next = delayed.peek();
+				if (next == null) {
+					selector.select();
+				} else {
+					long waitNanos = next.deadline - System.nanoTime();
+					if (waitNanos > 0) {
+						selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos + 999_999)));
+					} else {
+						selector.selectNow();
+					}
+				}
+			} catch (IOException e) {
+				Log.error("Event loop %s stopped", Thread.currentThread().getName(), e);
+				return;
+			}
+			wakeupPending.set(false);
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				NioSocketHandler handler = (NioSocketHandler) key.attachment();
+				if (key.isValid() && key.isReadable()) {
+					handler.read();
+				}
+				if (key.isValid() && key.isWritable()) {
+					handler.drain();
+				}
+			}
+
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				runSafely(task);
+			}
+			long now = System.nanoTime();
+			while (!delayed.isEmpty() && delayed.peek().deadline - now <= 0) {
+				runSafely(delayed.poll().task);
+			}
+		}
+	}
+
+	private static void runSafely(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			Log.error("Event loop task failed", e);
+		}
+	}
+}
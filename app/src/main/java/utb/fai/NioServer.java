@@ -0,0 +1,48 @@
+package utb.fai;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking transport: the main thread accepts, connections are spread
+ * round-robin over a fixed set of selector loops.
+ */
+class NioServer {
+	private final ServerConfig config;
+	private final ActiveHandlers activeHandlers;
+
+	NioServer(ServerConfig config, ActiveHandlers activeHandlers) {
+		this.config = config;
+		this.activeHandlers = activeHandlers;
+	}
+
+	void run() throws IOException {
+		NioEventLoop[] loops = new NioEventLoop[config.eventLoops];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new NioEventLoop(activeHandlers);
+			Thread t = new Thread(loops[i], "nio-loop-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(config.port), config.backlog);
+			int next = 0;
+			while (server.isOpen()) {
+				SocketChannel channel = server.accept();
+				String rejected = activeHandlers.admission.admit(channel.socket().getInetAddress());
+				if (rejected != null) {
+					Admission.reject(channel, rejected);
+					continue;
+				}
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+				loops[next].register(channel);
+				next = (next + 1) % loops.length;
+			}
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package utb.fai;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Connection served by a {@link NioEventLoop}. Lines are assembled from the
+ * raw bytes as they arrive, outgoing messages are drained from the inherited
+ * queue on the loop thread whenever a delivery schedules a flush. Read
+ * buffers and write batches are borrowed per read and per write, so an idle
+ * connection holds neither.
+ */
+class NioSocketHandler extends SocketHandler {
+	final SocketChannel channel;
+	final NioEventLoop loop;
+	SelectionKey key;
+
+	private boolean closed = false;
+
+	// Frames of the current gathering write, batch[batchStart..batchEnd) still have bytes left; null while idle
+	private ByteBuffer[] batch;
+	private int batchStart = 0;
+	private int batchEnd = 0;
+	private long batchCreated;
+	private final long lingerNanos;
+	private boolean lingering = false;
+	private volatile int flushScheduled = 0;
+
+	private static final AtomicIntegerFieldUpdater<NioSocketHandler> FLUSH_SCHEDULED =
+			AtomicIntegerFieldUpdater.newUpdater(NioSocketHandler.class, "flushScheduled");
+
+	NioSocketHandler(SocketChannel channel, ActiveHandlers activeHandlers, NioEventLoop loop) {
+		super(channel.socket(), activeHandlers);
+		this.channel = channel;
+		this.loop = loop;
+		this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(activeHandlers.config.lingerMicros);
+	}
+
+	/** A connection without a channel or loop, for benchmarks measuring what one holds. */
+	NioSocketHandler(String clientID, ActiveHandlers activeHandlers) {
+		super(clientID, activeHandlers);
+		this.channel = null;
+		this.loop = null;
+		this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(activeHandlers.config.lingerMicros);
+	}
+
+	@Override
+	void messageQueued() {
+		if (FLUSH_SCHEDULED.compareAndSet(this, 0, 1)) {
+			loop.execute(this::flushRequested);
+		}
+	}
+
+	@Override
+	void disconnect() {
+		loop.execute(this::close);
+	}
+
+	void read() {
+		LineSplitter.Sink sink = this::lineRead;
+		ByteBuffer in = readBuffer();
+		int n = 0;
+		try {
+			n = channel.read(in);
+			if (n < 0) {
+				lines.finish(sink);
+				close();
+				return;
+			}
+			lastInput = System.nanoTime();
+			in.flip();
+			if (!lines.feed(in, sink) && !closed) {
+				Log.warn("Line too long or corrupt input from %s, closing", clientID);
+				close();
+			}
+		} catch (IOException e) {
+			close();
+		} finally {
+			readDone(in, n);
+		}
+	}
+
+	private boolean lineRead(byte[] line, int start, int end) {
+		return !closed && handleLine(line, start, end);
+	}
+
+	private void flushRequested() {
+		flushScheduled = 0;
+		if (lingerNanos > 0 && messages.size() < activeHandlers.config.batchFrames) {
+			// Give more messages a chance to join this write, one pending linger per connection
+			if (!lingering) {
+				lingering = true;
+				loop.schedule(this::lingerExpired, lingerNanos);
+			}
+			return;
+		}
+		drain();
+	}
+
+	private void lingerExpired() {
+		lingering = false;
+		drain();
+	}
+
+	void drain() {
+		if (closed) {
+			return;
+		}
+		try {
+			while (true) {
+				if (batchStart < batchEnd) {
+					channel.write(batch, batchStart, batchEnd - batchStart);
+					while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+						batch[batchStart++] = null;
+					}
+					if (batchStart < batchEnd) {
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+					writeStarted = 0;
+					activeHandlers.metrics.recordWritten(batchCreated);
+				}
+				startBatch();
+				Frame first = messages.poll();
+				if (first == null) {
+					break;
+				}
+				if (batch == null) {
+					batch = activeHandlers.buffers.batch();
+				}
+				batch[0] = first.buffer();
+				batchCreated = first.created;
+				int n = messages.drainTo(batch, 1, activeHandlers.config.batchBytes - first.length());
+				long bytes = 0;
+				for (int i = 0; i < n; i++) {
+					bytes += batch[i].remaining();
+				}
+				batchStart = 0;
+				batchEnd = n;
+				writeStarted = System.nanoTime();
+				activeHandlers.metrics.recordBatch(n, bytes);
+				record(batch, n);
+				if (compressor != null) {
+					batch[0] = compressor.compress(batch, 0, n);
+					Arrays.fill(batch, 1, n, null);
+					batchEnd = 1;
+				}
+			}
+			releaseBatch();
+			key.interestOps(SelectionKey.OP_READ);
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	private void releaseBatch() {
+		if (batch != null) {
+			activeHandlers.buffers.release(batch);
+			batch = null;
+			batchStart = 0;
+			batchEnd = 0;
+		}
+	}
+
+	void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Log.warn("Closing %s failed", clientID, e);
+		}
+		activeHandlers.remove(this);
+		messages.close();
+		releaseBatch();
+		if (compressor != null) {
+			compressor.end();
+		}
+		Log.debugClient(clientID, "Connection %s closed", clientID);
+	}
+}
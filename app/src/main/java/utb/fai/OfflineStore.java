@@ -0,0 +1,187 @@
+package utb.fai;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Private messages for names nobody holds at the moment, kept until the
+ * name is claimed. Each user's messages are packed back to back into one
+ * byte array exactly as they will be written, CRLF-framed; a frame never
+ * contains another line feed, so the line ends are the message boundaries
+ * and there is no per-message object or header. Claiming a name hands the
+ * whole array to the client's queue as a single frame.
+ */
+final class OfflineStore {
+	private static final int MAGIC = 0x494d4f31; // "IMO1"
+	static final long SAVE_INTERVAL = TimeUnit.SECONDS.toNanos(30);
+
+	private static final class Mailbox {
+		byte[] data = new byte[256];
+		int start = 0;
+		int end = 0;
+		int count = 0;
+
+		int bytes() {
+			return end - start;
+		}
+	}
+
+	private final long totalCap;
+	private final int userCap;
+	private final Metrics metrics;
+	// Access ordered, so the mailbox written to longest ago is trimmed first when the store is full
+	private final LinkedHashMap<String, Mailbox> mailboxes = new LinkedHashMap<>(16, 0.75f, true);
+	private long total = 0;
+	private boolean dirty = false;
+
+	OfflineStore(ServerConfig config, Metrics metrics) {
+		this.totalCap = config.offlineTotalBytes;
+		this.userCap = config.offlineUserBytes;
+		this.metrics = metrics;
+	}
+
+	/** Keeps a private message for name; false if it cannot be kept at all. */
+	boolean store(String name, Frame frame) {
+		ByteBuffer b = frame.buffer();
+		byte[] bytes = new byte[b.remaining()];
+		b.get(bytes);
+		return store(name, bytes, 0, bytes.length);
+	}
+
+	private synchronized boolean store(String name, byte[] frame, int offset, int length) {
+		if (length > userCap || length > totalCap || !singleLine(frame, offset, length)) {
+			return false;
+		}
+		Mailbox box = mailboxes.get(name);
+		while (box != null && box.bytes() + length > userCap) {
+			evictOldest(box);
+		}
+		Iterator<Mailbox> eldest = mailboxes.values().iterator();
+		while (total + length > totalCap) {
+			Mailbox victim = eldest.next();
+			while (victim.bytes() > 0 && total + length > totalCap) {
+				evictOldest(victim);
+			}
+			if (victim.bytes() == 0) {
+				eldest.remove();
+			}
+		}
+		box = mailboxes.computeIfAbsent(name, n -> new Mailbox());
+		append(box, frame, offset, length);
+		total += length;
+		dirty = true;
+		metrics.offlineStored.increment();
+		return true;
+	}
+
+	private static boolean singleLine(byte[] frame, int offset, int length) {
+		for (int i = offset; i < offset + length - 1; i++) {
+			if (frame[i] == '\n') {
+				return false;
+			}
+		}
+		return length > 0 && frame[offset + length - 1] == '\n';
+	}
+
+	private void append(Mailbox box, byte[] frame, int offset, int length) {
+		if (box.end + length > box.data.length) {
+			int bytes = box.bytes();
+			byte[] data = bytes + length > box.data.length
+					? new byte[Math.min(userCap, Math.max(bytes + length, box.data.length * 2))]
+					: box.data;
+			System.arraycopy(box.data, box.start, data, 0, bytes);
+			box.data = data;
+			box.start = 0;
+			box.end = bytes;
+		}
+		System.arraycopy(frame, offset, box.data, box.end, length);
+		box.end += length;
+		box.count++;
+	}
+
+	private void evictOldest(Mailbox box) {
+		int i = box.start;
+		while (box.data[i] != '\n') {
+			i++;
+		}
+		total -= i + 1 - box.start;
+		box.start = i + 1;
+		box.count--;
+		metrics.offlineEvicted.increment();
+	}
+
+	/** Removes and returns everything kept for name as one frame, in the order sent; null if nothing. */
+	synchronized Frame take(String name) {
+		Mailbox box = mailboxes.remove(name);
+		if (box == null) {
+			return null;
+		}
+		total -= box.bytes();
+		dirty = true;
+		metrics.offlineDelivered.add(box.count);
+		return Frame.wrap(ByteBuffer.wrap(box.data, box.start, box.bytes()));
+	}
+
+	synchronized long bytes() {
+		return total;
+	}
+
+	synchronized int users() {
+		return mailboxes.size();
+	}
+
+	/** Writes the store to file through a temporary file, unless nothing changed since the last save. */
+	synchronized void save(Path file) throws IOException {
+		if (!dirty) {
+			return;
+		}
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(mailboxes.size());
+			for (Map.Entry<String, Mailbox> e : mailboxes.entrySet()) {
+				Mailbox box = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeInt(box.bytes());
+				out.write(box.data, box.start, box.bytes());
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		dirty = false;
+	}
+
+	/** Restores a saved store, least recently written first, so caps and eviction order carry over. */
+	void load(Path file) throws IOException {
+		if (!Files.exists(file)) {
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not an offline message store");
+			}
+			int users = in.readInt();
+			for (int u = 0; u < users; u++) {
+				String name = in.readUTF();
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				int start = 0;
+				for (int i = 0; i < data.length; i++) {
+					if (data[i] == '\n') {
+						store(name, data, start, i + 1 - start);
+						start = i + 1;
+					}
+				}
+			}
+		}
+		synchronized (this) {
+			dirty = false;
+		}
+	}
+}
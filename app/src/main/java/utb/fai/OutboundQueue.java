@@ -0,0 +1,338 @@
+package utb.fai;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-client outgoing frames, bounded by bytes according to a QueuePolicy.
+ * The stalled flag is readable without the lock so broadcasters can skip a
+ * backed-up client cheaply.
+ * <p>
+ * Frames wait in one of three lanes, each bounded on its own, so a backlog
+ * of room messages neither delays nor crowds out private messages and
+ * command replies. Control frames always go first; private and room frames
+ * take turns PRIVATE_WEIGHT to one while both are waiting. Only the room
+ * lane counts towards the stall watermarks.
+ * <p>
+ * A lane only exists while it holds frames, and the condition only once a
+ * blocking writer has waited, so an idle connection's queue is little more
+ * than its lock.
+ */
+class OutboundQueue {
+	enum Offer {
+		QUEUED, DROPPED_OLDEST, DROPPED_NEWEST, EVICT
+	}
+
+	enum Lane {
+		CONTROL, PRIVATE, ROOM
+	}
+
+	static final int PRIVATE_WEIGHT = 4;
+
+	final QueuePolicy policy;
+	private final Metrics metrics;
+	private final ReentrantLock lock = new ReentrantLock();
+	private Condition notEmpty;
+	// By Lane.ordinal(), null while empty
+	private final Queued[] lanes = new Queued[3];
+	private int size = 0;
+	private long bytes = 0;
+	// Private frames taken in a row while room frames were waiting
+	private int privateTurns = 0;
+	private boolean closed = false;
+	private volatile boolean stalled = false;
+	private volatile long stalledSince;
+	// Frames after which the writer changes how it writes (null when none), and the one it has just taken
+	private ArrayDeque<Frame> barriers;
+	private Frame passed;
+
+	private static final class Queued {
+		final ArrayDeque<Frame> frames = new ArrayDeque<>();
+		long bytes = 0;
+	}
+
+	OutboundQueue(QueuePolicy policy, Metrics metrics) {
+		this.policy = policy;
+		this.metrics = metrics;
+	}
+
+	private long capacity(Lane lane) {
+		switch (lane) {
+			case CONTROL:
+				return policy.controlBytes;
+			case PRIVATE:
+				return policy.privateBytes;
+			default:
+				return policy.capacityBytes;
+		}
+	}
+
+	// The lane's frames, created if it has none
+	private Queued lane(Lane lane) {
+		Queued queued = lanes[lane.ordinal()];
+		if (queued == null) {
+			queued = lanes[lane.ordinal()] = new Queued();
+		}
+		return queued;
+	}
+
+	private Condition notEmpty() {
+		if (notEmpty == null) {
+			notEmpty = lock.newCondition();
+		}
+		return notEmpty;
+	}
+
+	private void signal() {
+		if (notEmpty != null) {
+			notEmpty.signal();
+		}
+	}
+
+	boolean isStalled() {
+		return stalled;
+	}
+
+	boolean stalledTooLong() {
+		return stalled && policy.overflow == QueuePolicy.Overflow.DISCONNECT
+				&& System.nanoTime() - stalledSince > policy.stallNanos;
+	}
+
+	Offer offer(Frame frame, Lane lane) {
+		int length = frame.length();
+		long capacity = capacity(lane);
+		lock.lock();
+		try {
+			if (closed) {
+				return Offer.DROPPED_NEWEST;
+			}
+			if (stalledTooLong()) {
+				return Offer.EVICT;
+			}
+			Queued queued = lane(lane);
+			Offer result = Offer.QUEUED;
+			// An empty lane always takes the frame, however large
+			if (!queued.frames.isEmpty() && queued.bytes + length > capacity) {
+				if (policy.overflow != QueuePolicy.Overflow.DROP_OLDEST) {
+					return Offer.DROPPED_NEWEST;
+				}
+				while (!queued.frames.isEmpty() && queued.bytes + length > capacity) {
+					int dropped = queued.frames.poll().length();
+					queued.bytes -= dropped;
+					bytes -= dropped;
+					size--;
+					metrics.droppedOldest.increment();
+				}
+				result = Offer.DROPPED_OLDEST;
+			}
+			queued.frames.add(frame);
+			queued.bytes += length;
+			bytes += length;
+			size++;
+			if (!stalled && lane == Lane.ROOM && queued.bytes >= policy.highWatermark) {
+				stalledSince = System.nanoTime();
+				stalled = true;
+			}
+			signal();
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a control frame regardless of the policy, the last one before the
+	 * writer changes how it writes, e.g. starts compressing. No batch extends
+	 * past it; see passedBarrier().
+	 */
+	void offerBarrier(Frame frame) {
+		lock.lock();
+		try {
+			if (!closed) {
+				Queued control = lane(Lane.CONTROL);
+				control.frames.add(frame);
+				control.bytes += frame.length();
+				bytes += frame.length();
+				size++;
+				if (barriers == null) {
+					barriers = new ArrayDeque<>(2);
+				}
+				barriers.add(frame);
+				signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** The frame given to offerBarrier the last batch ended with, once; the writer checks before each batch. */
+	Frame passedBarrier() {
+		lock.lock();
+		try {
+			Frame barrier = passed;
+			passed = null;
+			return barrier;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Blocks until a frame is available; returns null once the queue is closed. */
+	Frame take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (size == 0 && !closed) {
+				notEmpty().await();
+			}
+			return closed ? null : removeFirst(System.nanoTime());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** The next frame without waiting, null if there is none or the queue is closed. */
+	Frame poll() {
+		lock.lock();
+		try {
+			return closed || passed != null || size == 0 ? null : removeFirst(System.nanoTime());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (size == 0 && !closed) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty().awaitNanos(nanos);
+			}
+			return closed || passed != null ? null : removeFirst(System.nanoTime());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves frames into out starting at index from, until out is full or the
+	 * byte budget is used up. Returns the index after the last frame added.
+	 */
+	int drainTo(ByteBuffer[] out, int from, long byteBudget) {
+		lock.lock();
+		try {
+			int n = from;
+			long now = System.nanoTime();
+			while (n < out.length && byteBudget > 0 && size > 0 && passed == null) {
+				Frame frame = removeFirst(now);
+				out[n++] = frame.buffer();
+				byteBudget -= frame.length();
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Frame removeFirst(long now) {
+		Lane lane = next();
+		Queued queued = lanes[lane.ordinal()];
+		Frame frame = queued.frames.poll();
+		queued.bytes -= frame.length();
+		bytes -= frame.length();
+		size--;
+		if (queued.frames.isEmpty()) {
+			lanes[lane.ordinal()] = null;
+		}
+		metrics.queueLatency[lane.ordinal()].record(now - frame.created);
+		if (barriers != null && frame == barriers.peek()) {
+			passed = barriers.poll();
+			if (barriers.isEmpty()) {
+				barriers = null;
+			}
+		}
+		if (stalled && lane == Lane.ROOM && queued.bytes <= policy.lowWatermark) {
+			stalled = false;
+		}
+		return frame;
+	}
+
+	// The lane the next frame comes from, at least one holding a frame
+	private Lane next() {
+		if (lanes[Lane.CONTROL.ordinal()] != null) {
+			return Lane.CONTROL;
+		}
+		if (lanes[Lane.PRIVATE.ordinal()] == null) {
+			return Lane.ROOM;
+		}
+		if (lanes[Lane.ROOM.ordinal()] == null) {
+			return Lane.PRIVATE;
+		}
+		if (privateTurns < PRIVATE_WEIGHT) {
+			privateTurns++;
+			return Lane.PRIVATE;
+		}
+		privateTurns = 0;
+		return Lane.ROOM;
+	}
+
+	int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Bytes the lane can still take before it overflows. */
+	long space(Lane lane) {
+		lock.lock();
+		try {
+			Queued queued = lanes[lane.ordinal()];
+			return capacity(lane) - (queued != null ? queued.bytes : 0);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long bytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discards queued frames and wakes a blocked take(), which then returns null.
+	 * Returns false if the queue was already closed.
+	 */
+	boolean close() {
+		lock.lock();
+		try {
+			if (closed) {
+				return false;
+			}
+			closed = true;
+			Arrays.fill(lanes, null);
+			barriers = null;
+			size = 0;
+			bytes = 0;
+			stalled = false;
+			if (notEmpty != null) {
+				notEmpty.signalAll();
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package utb.fai;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Another node of the cluster. This node talks to it over an outgoing link
+ * that a dedicated thread keeps connected, and hears from it over the link
+ * the peer opened to us (see Cluster). Messages are encoded by the caller
+ * and queued; when the link is down or the queue full they are dropped.
+ */
+final class Peer {
+	static final int QUEUE_CAPACITY = 64 * 1024;
+	private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	final String id;
+	final String host;
+	final int port;
+	// Rooms in which the peer has at least one member, as it announced them
+	final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+	private final Cluster cluster;
+	private final LinkedBlockingQueue<byte[]> outbox = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+	private volatile boolean up = false;
+
+	Peer(String id, String host, int port, Cluster cluster) {
+		this.id = id;
+		this.host = host;
+		this.port = port;
+		this.cluster = cluster;
+	}
+
+	boolean isUp() {
+		return up;
+	}
+
+	/** Whether a link saying it comes from this node may come from the address. */
+	boolean connectsFrom(InetAddress address) {
+		try {
+			for (InetAddress known : InetAddress.getAllByName(host)) {
+				if (known.equals(address)) {
+					return true;
+				}
+			}
+		} catch (UnknownHostException e) {
+			Log.warn("Cannot resolve peer %s: %s", this, e);
+		}
+		return false;
+	}
+
+	void start() {
+		Thread t = new Thread(this::connectLoop, "peer-out-" + id);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	boolean send(byte[] message) {
+		if (!up) {
+			return false;
+		}
+		if (!outbox.offer(message)) {
+			cluster.metrics.peerDropped.increment();
+			return false;
+		}
+		return true;
+	}
+
+	private void connectLoop() {
+		while (true) {
+			try (Socket socket = new Socket()) {
+				// From the address the peer knows this node by, see Cluster
+				if (!cluster.bind.isAnyLocalAddress()) {
+					socket.bind(new InetSocketAddress(cluster.bind, 0));
+				}
+				socket.connect(new InetSocketAddress(host, port), 1000);
+				socket.setTcpNoDelay(true);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				out.writeUTF(cluster.nodeId);
+				out.flush();
+				String remote = in.readUTF();
+				if (!remote.equals(id)) {
+					throw new IOException(host + ":" + port + " is node " + remote + ", expected " + id);
+				}
+				// Anything queued while down is stale, the state snapshot replaces it
+				outbox.clear();
+				up = true;
+				Log.info("Connected to peer %s at %s:%d", id, host, port);
+				out.write(cluster.snapshot(this));
+				out.flush();
+				while (true) {
+					byte[] message = outbox.take();
+					out.write(message);
+					if (outbox.isEmpty()) {
+						out.flush();
+					}
+				}
+			} catch (IOException e) {
+				if (up) {
+					Log.warn("Link to peer %s lost: %s", id, e);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				up = false;
+			}
+			try {
+				TimeUnit.NANOSECONDS.sleep(RETRY_NANOS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return id + "@" + host + ":" + port;
+	}
+}
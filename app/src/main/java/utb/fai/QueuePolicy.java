@@ -0,0 +1,111 @@
+package utb.fai;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How a client's outbound queue is bounded and what happens when it fills up.
+ * Parsed from a spec such as "bytes=65536,high=49152,low=16384,overflow=drop-oldest".
+ * The bytes and watermarks are those of room messages; private messages and
+ * command replies have lanes of their own, see OutboundQueue.
+ * <p>
+ * The watermarks and the overflow policy combine as follows. Above high the
+ * client is stalled until its room frames drain below low. With drop-newest
+ * and disconnect, broadcasts skip a stalled client without queueing, and with
+ * disconnect, a client stalled for longer than the stall time is closed.
+ * With drop-oldest, broadcasts keep queueing and a full lane gives up its
+ * oldest frames, so the client always gets the latest ones.
+ */
+class QueuePolicy {
+	enum Overflow {
+		DROP_NEWEST, DROP_OLDEST, DISCONNECT
+	}
+
+	final long capacityBytes;
+	final long privateBytes;
+	final long controlBytes;
+	// Above high the client counts as stalled, below low it recovers; see above for what that does
+	final long highWatermark;
+	final long lowWatermark;
+	final Overflow overflow;
+	// DISCONNECT only: how long a client may stay above the high watermark
+	final long stallNanos;
+
+	QueuePolicy(long capacityBytes, long highWatermark, long lowWatermark, Overflow overflow, long stallNanos,
+			long privateBytes, long controlBytes) {
+		if (capacityBytes <= 0 || lowWatermark > highWatermark || highWatermark > capacityBytes) {
+			throw new IllegalArgumentException("expected 0 <= low <= high <= bytes, bytes > 0");
+		}
+		if (privateBytes <= 0 || controlBytes <= 0) {
+			throw new IllegalArgumentException("expected private-bytes > 0, control-bytes > 0");
+		}
+		this.capacityBytes = capacityBytes;
+		this.privateBytes = privateBytes;
+		this.controlBytes = controlBytes;
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+		this.overflow = overflow;
+		this.stallNanos = stallNanos;
+	}
+
+	static QueuePolicy defaults() {
+		return parse("");
+	}
+
+	static QueuePolicy parse(String spec) {
+		long bytes = 64 * 1024;
+		long high = -1, low = -1;
+		long privateBytes = 64 * 1024, controlBytes = 64 * 1024;
+		Overflow overflow = Overflow.DROP_NEWEST;
+		long stallSeconds = 10;
+		for (String part : spec.split(",")) {
+			if (part.isEmpty()) {
+				continue;
+			}
+			int eq = part.indexOf('=');
+			if (eq < 0) {
+				throw new IllegalArgumentException("expected key=value in " + part);
+			}
+			String value = part.substring(eq + 1);
+			switch (part.substring(0, eq)) {
+				case "bytes":
+					bytes = Long.decode(value);
+					break;
+				case "high":
+					high = Long.decode(value);
+					break;
+				case "low":
+					low = Long.decode(value);
+					break;
+				case "private-bytes":
+					privateBytes = Long.decode(value);
+					break;
+				case "control-bytes":
+					controlBytes = Long.decode(value);
+					break;
+				case "overflow":
+					overflow = Overflow.valueOf(value.toUpperCase().replace('-', '_'));
+					break;
+				case "stall-seconds":
+					stallSeconds = Long.decode(value);
+					break;
+				default:
+					throw new IllegalArgumentException("unknown queue setting " + part);
+			}
+		}
+		if (high < 0) {
+			high = bytes * 3 / 4;
+		}
+		if (low < 0) {
+			low = Math.min(high, bytes / 4);
+		}
+		return new QueuePolicy(bytes, high, low, overflow, TimeUnit.SECONDS.toNanos(stallSeconds), privateBytes,
+				controlBytes);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("bytes=%d,high=%d,low=%d,private-bytes=%d,control-bytes=%d,overflow=%s,stall-seconds=%d",
+				capacityBytes, highWatermark, lowWatermark, privateBytes, controlBytes,
+				overflow.name().toLowerCase().replace('_', '-'), TimeUnit.NANOSECONDS.toSeconds(stallNanos));
+	}
+}
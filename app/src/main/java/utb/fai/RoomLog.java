@@ -0,0 +1,207 @@
+package utb.fai;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only message log of one room, split into fixed-size memory-mapped
+ * segment files. A record is
+ * [int length][int crc32c][long time][frame bytes][int length]; the trailing
+ * length lets readers walk back from the end without an index. Appends and
+ * retention run on the history writer thread only, readers take slices of
+ * the mapped segments up to each segment's committed position.
+ */
+final class RoomLog {
+	static final int HEADER = 16;
+	static final int TRAILER = 4;
+
+	static final class Segment {
+		final long sequence;
+		final Path path;
+		final MappedByteBuffer buffer;
+		// Bytes of complete records, written last so readers never see a partial one
+		volatile int committed;
+		long lastTime;
+
+		Segment(long sequence, Path path, MappedByteBuffer buffer) {
+			this.sequence = sequence;
+			this.path = path;
+			this.buffer = buffer;
+		}
+	}
+
+	private final Path dir;
+	private final int segmentBytes;
+	// Oldest first, the last one takes appends; replaced as a whole by the writer
+	private volatile Segment[] segments = new Segment[0];
+
+	private RoomLog(Path dir, int segmentBytes) {
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+	}
+
+	/** Maps the existing segments of dir and finds where each one's valid records end. */
+	static RoomLog open(Path dir, int segmentBytes) throws IOException {
+		RoomLog log = new RoomLog(dir, segmentBytes);
+		if (!Files.isDirectory(dir)) {
+			return log;
+		}
+		List<Segment> recovered = new ArrayList<>();
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path path : files.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().toList()) {
+				String name = path.getFileName().toString();
+				Segment segment = map(Long.parseLong(name.substring(0, name.length() - 4)), path, 0);
+				recover(segment);
+				if (segment.committed > 0) {
+					recovered.add(segment);
+				} else {
+					Files.deleteIfExists(path);
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Unexpected file in " + dir, e);
+		}
+		log.segments = recovered.toArray(new Segment[0]);
+		return log;
+	}
+
+	private static Segment map(long sequence, Path path, int size) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			long length = size > 0 ? size : channel.size();
+			// The mapping stays valid after the channel is closed
+			return new Segment(sequence, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, length));
+		}
+	}
+
+	// Stops at the first record that is incomplete or fails its checksum, e.g. torn by a crash
+	private static void recover(Segment segment) {
+		ByteBuffer b = segment.buffer;
+		int pos = 0;
+		while (pos + HEADER + TRAILER <= b.capacity()) {
+			int length = b.getInt(pos);
+			if (length <= 0 || length > b.capacity() - pos - HEADER - TRAILER
+					|| b.getInt(pos + HEADER + length) != length || b.getInt(pos + 4) != crc(b, pos + HEADER, length)) {
+				break;
+			}
+			segment.lastTime = b.getLong(pos + 8);
+			pos += HEADER + length + TRAILER;
+		}
+		segment.committed = pos;
+	}
+
+	private static int crc(ByteBuffer b, int index, int length) {
+		CRC32C crc = new CRC32C();
+		crc.update(b.slice(index, length));
+		return (int) crc.getValue();
+	}
+
+	/** Writer thread only. Returns false if the frame cannot fit into a segment at all. */
+	boolean append(Frame frame, long time) throws IOException {
+		ByteBuffer payload = frame.buffer();
+		int length = payload.remaining();
+		int size = HEADER + length + TRAILER;
+		if (size > segmentBytes) {
+			return false;
+		}
+		Segment[] current = segments;
+		Segment segment = current.length == 0 ? null : current[current.length - 1];
+		if (segment == null || segment.committed + size > segment.buffer.capacity()) {
+			segment = roll(current);
+		}
+		MappedByteBuffer b = segment.buffer;
+		int pos = segment.committed;
+		b.put(pos + HEADER, payload, payload.position(), length);
+		b.putInt(pos + HEADER + length, length);
+		b.putLong(pos + 8, time);
+		b.putInt(pos + 4, crc(b, pos + HEADER, length));
+		b.putInt(pos, length);
+		segment.lastTime = time;
+		segment.committed = pos + size;
+		return true;
+	}
+
+	private Segment roll(Segment[] current) throws IOException {
+		long sequence = 0;
+		if (current.length > 0) {
+			Segment last = current[current.length - 1];
+			last.buffer.force();
+			sequence = last.sequence + 1;
+		}
+		Files.createDirectories(dir);
+		Segment segment = map(sequence, dir.resolve(String.format("%020d.log", sequence)), segmentBytes);
+		Segment[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = segment;
+		segments = updated;
+		return segment;
+	}
+
+	/**
+	 * Writer thread only. Deletes the oldest segments while the log is over
+	 * maxBytes or their newest record is older than minTime.
+	 */
+	void retain(long maxBytes, long minTime) throws IOException {
+		Segment[] current = segments;
+		long total = 0;
+		for (Segment segment : current) {
+			total += segment.buffer.capacity();
+		}
+		int drop = 0;
+		while (drop < current.length) {
+			Segment oldest = current[drop];
+			// The active segment only goes once everything in it has expired
+			boolean expired = oldest.lastTime < minTime && oldest.committed > 0;
+			boolean tooBig = total > maxBytes && drop < current.length - 1;
+			if (!expired && !tooBig) {
+				break;
+			}
+			total -= oldest.buffer.capacity();
+			drop++;
+		}
+		if (drop == 0) {
+			return;
+		}
+		segments = Arrays.copyOfRange(current, drop, current.length);
+		// Readers still holding slices keep the pages mapped, removing the file is safe
+		for (int i = 0; i < drop; i++) {
+			Files.deleteIfExists(current[i].path);
+		}
+	}
+
+	/** The last n frames, oldest first, as read-only views of the mapped files. */
+	List<ByteBuffer> last(int n) {
+		ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+		Segment[] current = segments;
+		for (int i = current.length - 1; i >= 0 && frames.size() < n; i--) {
+			MappedByteBuffer b = current[i].buffer;
+			int pos = current[i].committed;
+			while (pos > 0 && frames.size() < n) {
+				int length = b.getInt(pos - TRAILER);
+				pos -= HEADER + length + TRAILER;
+				frames.addFirst(b.slice(pos + HEADER, length).asReadOnlyBuffer());
+			}
+		}
+		return new ArrayList<>(frames);
+	}
+
+	boolean isEmpty() {
+		return segments.length == 0;
+	}
+
+	void force() {
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+	}
+}
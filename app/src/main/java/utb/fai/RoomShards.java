@@ -0,0 +1,217 @@
+package utb.fai;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Rooms partitioned by hash over a fixed set of worker threads. Each worker
+ * alone changes and reads the membership of its rooms, working through a
+ * mailbox of joins, leaves and publishes in the order they were queued, so
+ * a room's messages keep their order and a join or leave applies between
+ * two of them. Callers only queue. A message to rooms on several shards is
+ * handed to each of them with one claim set, and a recipient is only
+ * offered the message by whichever shard adds it to the set first.
+ */
+final class RoomShards {
+	private static final int JOIN = 0, LEAVE = 1, PUBLISH = 2;
+	// Commands handled before the worker looks at its statistics and wake-up state again
+	private static final int BATCH = 256;
+
+	private final ActiveHandlers handlers;
+	private final Shard[] shards;
+
+	RoomShards(ActiveHandlers handlers, int count) {
+		this.handlers = handlers;
+		this.shards = new Shard[count];
+		for (int i = 0; i < count; i++) {
+			shards[i] = new Shard();
+		}
+	}
+
+	void start() {
+		for (int i = 0; i < shards.length; i++) {
+			Thread t = new Thread(shards[i], "room-shard-" + i);
+			t.setDaemon(true);
+			shards[i].thread = t;
+			t.start();
+		}
+	}
+
+	private Shard shardOf(String room) {
+		return shards[Math.floorMod(room.hashCode(), shards.length)];
+	}
+
+	void join(String room, SocketHandler handler) {
+		shardOf(room).add(new Command(JOIN, room, null, handler, null));
+	}
+
+	void leave(String room, SocketHandler handler) {
+		shardOf(room).add(new Command(LEAVE, room, null, handler, null));
+	}
+
+	/** Queues a message to the rooms' members except the sender (null for one from a peer node). */
+	void publish(SocketHandler sender, int[] rooms, Frame frame) {
+		Interner roomIds = handlers.roomIds;
+		if (rooms.length == 1) {
+			String room = roomIds.name(rooms[0]);
+			shardOf(room).add(new Command(PUBLISH, room, null, sender, new Publish(frame, null, 1)));
+			return;
+		}
+		// Rooms grouped by shard, so each shard gets one command however many of its rooms are involved
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		ArrayList<String>[] byShard = new ArrayList[shards.length];
+		int parts = 0;
+		for (int id : rooms) {
+			String room = roomIds.name(id);
+			int i = Math.floorMod(room.hashCode(), shards.length);
+			if (byShard[i] == null) {
+				byShard[i] = new ArrayList<>(rooms.length);
+				parts++;
+			}
+			byShard[i].add(room);
+		}
+		Set<SocketHandler> claimed = ConcurrentHashMap.newKeySet();
+		if (sender != null) {
+			claimed.add(sender);
+		}
+		Publish publish = new Publish(frame, claimed, parts);
+		for (int i = 0; i < shards.length; i++) {
+			if (byShard[i] != null) {
+				shards[i].add(new Command(PUBLISH, null, byShard[i].toArray(new String[0]), sender, publish));
+			}
+		}
+	}
+
+	/** Commands queued but not yet handled, per shard. */
+	long[] depths() {
+		long[] depths = new long[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			depths[i] = shards[i].queued.sum() - shards[i].handled;
+		}
+		return depths;
+	}
+
+	private static final class Command {
+		final int type;
+		final String room;
+		final String[] rooms;
+		final SocketHandler handler;
+		final Publish publish;
+
+		Command(int type, String room, String[] rooms, SocketHandler handler, Publish publish) {
+			this.type = type;
+			this.room = room;
+			this.rooms = rooms;
+			this.handler = handler;
+			this.publish = publish;
+		}
+	}
+
+	/** One message, shared by the shards it went to. */
+	private static final class Publish {
+		final Frame frame;
+		final Set<SocketHandler> claimed;
+		final AtomicInteger parts;
+		final AtomicInteger fanout = new AtomicInteger();
+
+		Publish(Frame frame, Set<SocketHandler> claimed, int parts) {
+			this.frame = frame;
+			this.claimed = claimed;
+			this.parts = new AtomicInteger(parts);
+		}
+	}
+
+	private final class Shard implements Runnable {
+		private final ConcurrentLinkedQueue<Command> mailbox = new ConcurrentLinkedQueue<>();
+		private final LongAdder queued = new LongAdder();
+		private volatile long handled = 0;
+		private volatile boolean sleeping = false;
+		Thread thread;
+
+		void add(Command command) {
+			mailbox.add(command);
+			queued.increment();
+			if (sleeping) {
+				LockSupport.unpark(thread);
+			}
+		}
+
+		public void run() {
+			long count = 0;
+			while (true) {
+				Command command;
+				int n = 0;
+				while (n < BATCH && (command = mailbox.poll()) != null) {
+					try {
+						handle(command);
+					} catch (RuntimeException e) {
+						Log.error("Room shard failed on a command", e);
+					}
+					n++;
+				}
+				count += n;
+				handled = count;
+				if (n == 0) {
+					sleeping = true;
+					// Re-checked after announcing, an add in between either sees the flag or is seen here
+					if (mailbox.isEmpty()) {
+						LockSupport.park(this);
+					}
+					sleeping = false;
+				}
+			}
+		}
+
+		private void handle(Command command) {
+			switch (command.type) {
+				case JOIN:
+					handlers.addMember(command.room, command.handler);
+					handlers.joined(command.room, command.handler);
+					break;
+				case LEAVE:
+					handlers.removeMember(command.room, command.handler);
+					break;
+				default:
+					publish(command);
+			}
+		}
+
+		private void publish(Command command) {
+			Publish publish = command.publish;
+			int fanout = 0;
+			if (command.room != null) {
+				fanout = deliver(command.room, command.handler, publish);
+			} else {
+				for (String room : command.rooms) {
+					fanout += deliver(room, command.handler, publish);
+				}
+			}
+			// The shard finishing last records the fan-out of the whole message
+			fanout = publish.fanout.addAndGet(fanout);
+			if (publish.parts.decrementAndGet() == 0 && command.handler != null) {
+				handlers.metrics.fanout.record(fanout);
+			}
+		}
+
+		private int deliver(String roomName, SocketHandler sender, Publish publish) {
+			ActiveHandlers.Room room = handlers.room(roomName);
+			if (room == null) {
+				return 0;
+			}
+			handlers.posted(room, publish.frame);
+			int fanout = 0;
+			for (SocketHandler handler : room.members) {
+				if (handler != sender && (publish.claimed == null || publish.claimed.add(handler))) {
+					handlers.offer(handler, publish.frame);
+					fanout++;
+				}
+			}
+			return fanout;
+		}
+	}
+}
@@ -0,0 +1,377 @@
+package utb.fai;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class ServerConfig {
+	enum Transport {
+		BLOCKING, NIO
+	}
+
+	enum Threads {
+		POOL, VIRTUAL
+	}
+
+	int port = 33000;
+	int maxConnections = 2;
+	// Admission: open connections in total and per remote address (0 is unlimited), and the accept backlog;
+	// the blocking transport on the thread pool is capped at maxConnections, see parse
+	int maxClients = 0;
+	int maxPerAddress = 0;
+	int backlog = 50;
+	// Per connection RATE[:BURST] per second of input lines and of broadcasts, 0 is off
+	long[] lineRate = { 0, 0 };
+	long[] broadcastRate = { 0, 0 };
+	// Seconds without input, without a name and stuck in a socket write before a connection is closed,
+	// and of silence before the server sends #ping; 0 is off
+	int idleTimeout = 0;
+	int nameTimeout = 0;
+	int writeStallTimeout = 0;
+	int pingInterval = 0;
+	// Seconds a dropped connection's session waits for #resume, 0 is off; ring per session and for all of them
+	int sessionGrace = 0;
+	int sessionRingBytes = 64 * 1024;
+	long sessionTotalBytes = 64L * 1024 * 1024;
+	Transport transport = Transport.BLOCKING;
+	Threads threads = Threads.POOL;
+	int eventLoops = Runtime.getRuntime().availableProcessors();
+	// Rooms owned by this many worker threads instead of fanned out on the sender's thread, 0 is off
+	int roomShards = 0;
+	int batchFrames = 64;
+	int batchBytes = 64 * 1024;
+	long lingerMicros = 0;
+	// Idle read buffers and write batches kept for reuse, see BufferPool
+	long bufferPoolBytes = 8L * 1024 * 1024;
+	// Outbound queue policy per connection class, "default" always exists
+	Map<String, QueuePolicy> queuePolicies = new LinkedHashMap<>(Map.of("default", QueuePolicy.defaults()));
+	// Remote address prefix -> connection class, first match wins
+	List<String[]> queueClasses = new ArrayList<>();
+	Log.Level logLevel = Log.Level.INFO;
+	String logFile = null;
+	int logBuffer = 8192;
+	// User names allowed to run admin commands, only from a loopback address
+	Set<String> admins = new HashSet<>();
+	// Plaintext metrics on http://localhost:PORT/metrics, 0 is off
+	int metricsPort = 0;
+	// Room history is kept only when a directory is given
+	String historyDir = null;
+	int historySegmentBytes = 1024 * 1024;
+	long historyMaxBytes = 16 * 1024 * 1024;
+	long historyMaxAgeSeconds = TimeUnit.DAYS.toSeconds(1);
+	// Messages replayed to whoever joins a room, 0 is off
+	int historyReplay = 0;
+	// Private messages to absent users are kept up to these caps, 0 is off
+	long offlineTotalBytes = 0;
+	int offlineUserBytes = 64 * 1024;
+	String offlineFile = null;
+	// #compress is honoured when on; batches below the size or over the server-wide CPU share are stored
+	boolean compress = true;
+	int compressLevel = 6;
+	int compressMinBytes = 128;
+	int compressBudgetPercent = 50;
+	// Cluster of servers, on when peers are given; the node id defaults to the client port
+	String node = null;
+	int peerPort = 0;
+	// Where the peer port listens and links to other nodes leave from, the address they list for this node
+	String peerBind = "127.0.0.1";
+	// id, host, port of every other node
+	List<String[]> peers = new ArrayList<>();
+
+	static String usage(ServerConfig defaults) {
+		return String.format("Usage: Server [PORT] [MAX_CONNECTIONS] [OPTIONS]\n" +
+				"If PORT is not specified, default port %d is used\n" +
+				"If MAX_CONNECTIONS is not specified, default number=%d is used\n" +
+				"Options:\n" +
+				"  --max-clients=N           reject connections beyond N open ones (default unlimited, at most\n" +
+				"                            MAX_CONNECTIONS with the blocking transport on the thread pool)\n" +
+				"  --max-per-address=N       reject connections beyond N open ones per remote address (default unlimited)\n" +
+				"  --backlog=N               accept backlog (default %d)\n" +
+				"  --line-rate=R[:BURST]     input lines per second per connection, excess is dropped (default off)\n" +
+				"  --broadcast-rate=R[:BURST] room messages per second per user, excess is dropped (default off)\n" +
+				"  --idle-timeout=S          close connections that sent nothing for S seconds (default off)\n" +
+				"  --name-timeout=S          close connections not named within S seconds (default off)\n" +
+				"  --write-stall-timeout=S   close connections a write to has been stuck for S seconds (default off)\n" +
+				"  --ping-interval=S         send #ping to named connections silent for S seconds (default off)\n" +
+				"  --session-grace=S         keep the name, rooms and output of a #session for S seconds after\n" +
+				"                            its connection drops, for a #resume (default off)\n" +
+				"  --session-ring-bytes=N    output kept per session (default %d)\n" +
+				"  --session-total-bytes=N   output kept for all sessions together (default %d)\n" +
+				"  --transport=blocking|nio  connection handling (default blocking)\n" +
+				"  --event-loops=N           selector threads for nio transport (default %d)\n" +
+				"  --threads=pool|virtual    threads running the blocking transport handlers (default pool)\n" +
+				"  --room-shards=N           partition rooms over N threads that do all joins, leaves and fan-out (default off)\n" +
+				"  --batch-frames=N          most messages coalesced into one socket write (default %d)\n" +
+				"  --batch-bytes=N           byte budget of one socket write (default %d)\n" +
+				"  --linger-us=N             wait up to N microseconds for more output before writing (default %d,\n" +
+				"                            the nio transport rounds up to whole milliseconds)\n" +
+				"  --buffer-pool-bytes=N     idle read buffers and write batches kept for reuse (default %d)\n" +
+				"  --queue=SPEC              outbound queue policy of the default connection class\n" +
+				"  --queue-policy=CLASS:SPEC outbound queue policy of another connection class\n" +
+				"  --queue-class=CLASS:ADDR  connections whose address starts with ADDR use CLASS\n" +
+				"                            SPEC is bytes=N,high=N,low=N,private-bytes=N,control-bytes=N,\n" +
+				"                            overflow=drop-newest|drop-oldest|disconnect,stall-seconds=N\n" +
+				"                            (default %s)\n" +
+				"  --log-level=LEVEL         error|warn|info|debug|trace (default info)\n" +
+				"  --log-file=PATH           append the log to PATH instead of stdout\n" +
+				"  --log-buffer=N            log records buffered before new ones are dropped (default %d)\n" +
+				"  --admins=NAME[,NAME...]   users allowed to run admin commands from localhost\n" +
+				"  --metrics-port=N          serve metrics on http://localhost:N/metrics (default off)\n" +
+				"  --history-dir=PATH        keep room history in memory-mapped files under PATH (default off)\n" +
+				"  --history-segment=N       bytes per history file (default %d)\n" +
+				"  --history-max-bytes=N     history kept per room (default %d)\n" +
+				"  --history-max-age=S       seconds history is kept (default %d)\n" +
+				"  --history-replay=N        replay the last N messages of a room on joining it (default %d)\n" +
+				"  --offline-total-bytes=N   keep up to N bytes of private messages for absent users (default off)\n" +
+				"  --offline-user-bytes=N    of which at most N bytes per user (default %d)\n" +
+				"  --offline-file=PATH       save kept private messages to PATH across restarts\n" +
+				"  --compress=on|off         allow clients to switch to deflate with #compress (default on)\n" +
+				"  --compress-level=N        deflate level 1-9 (default %d)\n" +
+				"  --compress-min-bytes=N    send smaller batches stored rather than compressed (default %d)\n" +
+				"  --compress-budget=P       percent of one core all connections may spend compressing (default %d)\n" +
+				"  --node=ID                 this server's id in a cluster (default PORT)\n" +
+				"  --peer-port=N             port other nodes connect to (default PORT+1)\n" +
+				"  --peer-bind=ADDRESS       address of the peer port, the one other nodes list for this node; links\n" +
+				"                            are accepted only from the addresses listed for the peers (default %s)\n" +
+				"  --peers=ID@HOST:PORT,...  the other nodes of the cluster, all nodes must list the same set\n",
+				defaults.port, defaults.maxConnections, defaults.backlog, defaults.sessionRingBytes,
+				defaults.sessionTotalBytes, defaults.eventLoops,
+				defaults.batchFrames, defaults.batchBytes, defaults.lingerMicros, defaults.bufferPoolBytes, defaults.queuePolicies.get("default"),
+				defaults.logBuffer, defaults.historySegmentBytes, defaults.historyMaxBytes, defaults.historyMaxAgeSeconds,
+				defaults.historyReplay, defaults.offlineUserBytes, defaults.compressLevel, defaults.compressMinBytes,
+				defaults.compressBudgetPercent, defaults.peerBind);
+	}
+
+	/**
+	 * Positional arguments keep their original meaning, options of the form
+	 * --name=value may appear anywhere. Returns null when --help was requested.
+	 */
+	static ServerConfig parse(String[] args) {
+		ServerConfig config = new ServerConfig();
+		int positional = 0;
+		for (String arg : args) {
+			if (arg.startsWith("--help")) {
+				return null;
+			}
+			if (arg.startsWith("--")) {
+				config.option(arg);
+				continue;
+			}
+			try {
+				if (positional == 0)
+					config.port = Integer.decode(arg);
+				else if (positional == 1)
+					config.maxConnections = Integer.decode(arg);
+			} catch (NumberFormatException e) {
+				System.err.printf("Argument %s is not integer, using default value\n", arg);
+			}
+			positional++;
+		}
+		// The fixed pool has two threads per connection, any beyond would only wait unserved in its queue
+		if (config.transport == Transport.BLOCKING && config.threads == Threads.POOL
+				&& (config.maxClients == 0 || config.maxClients > config.maxConnections)) {
+			config.maxClients = config.maxConnections;
+		}
+		return config;
+	}
+
+	private void option(String arg) {
+		int eq = arg.indexOf('=');
+		String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+		String value = eq < 0 ? "" : arg.substring(eq + 1);
+		try {
+			switch (name) {
+				case "max-clients":
+					maxClients = Math.max(0, Integer.decode(value));
+					break;
+				case "max-per-address":
+					maxPerAddress = Math.max(0, Integer.decode(value));
+					break;
+				case "backlog":
+					backlog = Math.max(1, Integer.decode(value));
+					break;
+				case "line-rate":
+					lineRate = rate(value);
+					break;
+				case "broadcast-rate":
+					broadcastRate = rate(value);
+					break;
+				case "idle-timeout":
+					idleTimeout = Math.max(0, Integer.decode(value));
+					break;
+				case "name-timeout":
+					nameTimeout = Math.max(0, Integer.decode(value));
+					break;
+				case "write-stall-timeout":
+					writeStallTimeout = Math.max(0, Integer.decode(value));
+					break;
+				case "ping-interval":
+					pingInterval = Math.max(0, Integer.decode(value));
+					break;
+				case "session-grace":
+					sessionGrace = Math.max(0, Integer.decode(value));
+					break;
+				case "session-ring-bytes":
+					sessionRingBytes = Math.max(1024, Integer.decode(value));
+					break;
+				case "session-total-bytes":
+					sessionTotalBytes = Math.max(0, Long.decode(value));
+					break;
+				case "transport":
+					transport = Transport.valueOf(value.toUpperCase());
+					break;
+				case "threads":
+					threads = Threads.valueOf(value.toUpperCase());
+					break;
+				case "room-shards":
+					roomShards = Math.max(0, Integer.decode(value));
+					break;
+				case "event-loops":
+					eventLoops = Math.max(1, Integer.decode(value));
+					break;
+				case "batch-frames":
+					batchFrames = Math.max(1, Integer.decode(value));
+					break;
+				case "batch-bytes":
+					batchBytes = Math.max(1, Integer.decode(value));
+					break;
+				case "linger-us":
+					lingerMicros = Math.max(0, Long.decode(value));
+					break;
+				case "buffer-pool-bytes":
+					bufferPoolBytes = Math.max(0, Long.decode(value));
+					break;
+				case "queue":
+					queuePolicies.put("default", QueuePolicy.parse(value));
+					break;
+				case "queue-policy":
+					queuePolicies.put(before(value, ':'), QueuePolicy.parse(after(value, ':')));
+					break;
+				case "queue-class":
+					queueClasses.add(new String[] { after(value, ':'), before(value, ':') });
+					break;
+				case "log-level":
+					logLevel = Log.Level.valueOf(value.toUpperCase());
+					break;
+				case "log-file":
+					logFile = value;
+					break;
+				case "log-buffer":
+					logBuffer = Math.max(2, Integer.decode(value));
+					break;
+				case "admins":
+					admins.addAll(Arrays.asList(value.split(",")));
+					break;
+				case "metrics-port":
+					metricsPort = Math.max(0, Integer.decode(value));
+					break;
+				case "history-dir":
+					historyDir = value.isEmpty() ? null : value;
+					break;
+				case "history-segment":
+					// A segment must hold at least one line of the longest kind
+					historySegmentBytes = Math.max(2 * LineSplitter.MAX_LINE, Integer.decode(value));
+					break;
+				case "history-max-bytes":
+					historyMaxBytes = Math.max(0, Long.decode(value));
+					break;
+				case "history-max-age":
+					historyMaxAgeSeconds = Math.max(1, Long.decode(value));
+					break;
+				case "history-replay":
+					historyReplay = Math.max(0, Integer.decode(value));
+					break;
+				case "offline-total-bytes":
+					offlineTotalBytes = Math.max(0, Long.decode(value));
+					break;
+				case "offline-user-bytes":
+					offlineUserBytes = Math.max(1024, Integer.decode(value));
+					break;
+				case "offline-file":
+					offlineFile = value.isEmpty() ? null : value;
+					break;
+				case "compress":
+					compress = !value.equalsIgnoreCase("off");
+					break;
+				case "compress-level":
+					compressLevel = Math.max(1, Math.min(9, Integer.decode(value)));
+					break;
+				case "compress-min-bytes":
+					compressMinBytes = Math.max(0, Integer.decode(value));
+					break;
+				case "compress-budget":
+					compressBudgetPercent = Math.max(0, Integer.decode(value));
+					break;
+				case "node":
+					node = value.isEmpty() ? null : value;
+					break;
+				case "peer-bind":
+					peerBind = value;
+					break;
+				case "peer-port":
+					peerPort = Math.max(0, Integer.decode(value));
+					break;
+				case "peers":
+					for (String peer : value.split(",")) {
+						String address = after(peer, '@');
+						int colon = address.lastIndexOf(':');
+						if (colon < 0) {
+							throw new IllegalArgumentException("missing :");
+						}
+						Integer.decode(address.substring(colon + 1));
+						peers.add(new String[] { before(peer, '@'), address.substring(0, colon), address.substring(colon + 1) });
+					}
+					break;
+				default:
+					System.err.printf("Unknown option %s, ignoring\n", arg);
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.printf("Invalid value in %s, using default value\n", arg);
+		}
+	}
+
+	private static String before(String value, char separator) {
+		int i = value.indexOf(separator);
+		if (i < 0) {
+			throw new IllegalArgumentException("missing " + separator);
+		}
+		return value.substring(0, i);
+	}
+
+	// RATE[:BURST], the burst defaulting to one second's worth
+	private static long[] rate(String value) {
+		int colon = value.indexOf(':');
+		long rate = Math.max(0, Long.decode(colon < 0 ? value : value.substring(0, colon)));
+		long burst = colon < 0 ? rate : Math.max(1, Long.decode(value.substring(colon + 1)));
+		return new long[] { rate, burst };
+	}
+
+	private static String after(String value, char separator) {
+		return value.substring(value.indexOf(separator) + 1);
+	}
+
+	QueuePolicy queuePolicyFor(String address) {
+		for (String[] queueClass : queueClasses) {
+			if (address.startsWith(queueClass[0])) {
+				QueuePolicy policy = queuePolicies.get(queueClass[1]);
+				if (policy != null) {
+					return policy;
+				}
+			}
+		}
+		return queuePolicies.get("default");
+	}
+
+	String nodeId() {
+		return node != null ? node : Integer.toString(port);
+	}
+
+	int peerPort() {
+		return peerPort > 0 ? peerPort : port + 1;
+	}
+}
@@ -0,0 +1,198 @@
+package utb.fai;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sessions a client can resume after its connection drops. A client that
+ * sent #session gets a token, and from then on everything written to it is
+ * also copied into its session's ring, counted in lines (frames in the
+ * binary protocol). When the connection closes, the handler keeps its name
+ * and rooms for the grace period, and whatever is sent to it only goes into
+ * the ring. "#resume TOKEN COUNT" as the first line of a new connection
+ * takes both over and replays what followed the first COUNT lines.
+ * <p>
+ * Rings are allocated from a fixed server-wide budget; a client asking once
+ * it is used up gets no session.
+ */
+final class Sessions {
+	private final ActiveHandlers handlers;
+	private final long graceNanos;
+	private final int ringBytes;
+	private final long totalBytes;
+	private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+	private final SecureRandom random = new SecureRandom();
+	private final AtomicLong reserved = new AtomicLong();
+
+	Sessions(ActiveHandlers handlers) {
+		this.handlers = handlers;
+		this.graceNanos = TimeUnit.SECONDS.toNanos(handlers.config.sessionGrace);
+		this.ringBytes = handlers.config.sessionRingBytes;
+		this.totalBytes = handlers.config.sessionTotalBytes;
+	}
+
+	/** What a client needs to resume: the ring of its latest output and who it is at the moment. */
+	static final class Session {
+		final String token;
+		final boolean binary;
+		private final byte[] ring;
+		// Where line i ended, at i & (ends.length - 1)
+		private final long[] ends;
+		private long written = 0;
+		private long lines = 0;
+		// The connection recording into the ring, null once the session has expired; all guarded by the session
+		SocketHandler owner;
+		boolean detached = false;
+		TimingWheel.Timeout expiry;
+
+		Session(String token, boolean binary, int ringBytes) {
+			this.token = token;
+			this.binary = binary;
+			this.ring = new byte[ringBytes];
+			this.ends = new long[Math.max(64, Integer.highestOneBit(Math.max(1, ringBytes / 32)) * 2)];
+		}
+
+		long cost() {
+			return ring.length + 8L * ends.length;
+		}
+
+		/** Copies whole lines or frames into the ring, unless from no longer owns the session. */
+		synchronized boolean record(SocketHandler from, ByteBuffer b) {
+			if (owner != from) {
+				return false;
+			}
+			append(b);
+			return true;
+		}
+
+		/** A batch about to be written, see record(SocketHandler, ByteBuffer). */
+		synchronized void record(SocketHandler from, ByteBuffer[] batch, int n) {
+			if (owner == from) {
+				for (int i = 0; i < n; i++) {
+					append(batch[i]);
+				}
+			}
+		}
+
+		private void append(ByteBuffer b) {
+			int start = b.position();
+			int end = b.limit();
+			int mask = ends.length - 1;
+			if (binary) {
+				for (int p = start; p + Binary.LENGTH <= end;) {
+					p += Binary.LENGTH + b.getInt(p);
+					ends[(int) (lines++ & mask)] = written + p - start;
+				}
+			} else {
+				for (int p = start; p < end; p++) {
+					if (b.get(p) == '\n') {
+						ends[(int) (lines++ & mask)] = written + p + 1 - start;
+					}
+				}
+			}
+			// Only the tail of a batch larger than the ring survives anyway
+			int skip = Math.max(0, end - start - ring.length);
+			for (int p = start + skip; p < end;) {
+				int at = (int) ((written + p - start) % ring.length);
+				int n = Math.min(end - p, ring.length - at);
+				b.get(p, ring, at, n);
+				p += n;
+			}
+			written += end - start;
+		}
+
+		/** Everything after the first count lines, null when that is no longer all in the ring. */
+		synchronized byte[] since(long count) {
+			if (count < 0 || count > lines || (count > 0 && count - 1 < lines - ends.length)) {
+				return null;
+			}
+			long from = count == 0 ? 0 : ends[(int) ((count - 1) & (ends.length - 1))];
+			if (written - from > ring.length) {
+				return null;
+			}
+			byte[] replay = new byte[(int) (written - from)];
+			for (int p = 0; p < replay.length;) {
+				int at = (int) ((from + p) % ring.length);
+				int n = Math.min(replay.length - p, ring.length - at);
+				System.arraycopy(ring, at, replay, p, n);
+				p += n;
+			}
+			return replay;
+		}
+	}
+
+	/** A new session owned by handler, null when the budget is used up. */
+	Session open(SocketHandler handler) {
+		Session session = new Session(token(), handler.binary, ringBytes);
+		if (reserved.addAndGet(session.cost()) > totalBytes) {
+			reserved.addAndGet(-session.cost());
+			return null;
+		}
+		session.owner = handler;
+		sessions.put(session.token, session);
+		handlers.metrics.sessionsOpened.increment();
+		return session;
+	}
+
+	private String token() {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		return HexFormat.of().formatHex(bytes);
+	}
+
+	Session get(String token) {
+		return sessions.get(token);
+	}
+
+	/** Keeps a closed connection in its rooms for the grace period; false when it has no session to keep. */
+	boolean detach(SocketHandler handler) {
+		Session session = handler.session;
+		if (session == null) {
+			return false;
+		}
+		TimingWheel.Timeout expiry = new TimingWheel.Timeout() {
+			@Override
+			long expired(long now) {
+				expire(session, handler);
+				return 0;
+			}
+		};
+		synchronized (session) {
+			if (session.owner != handler) {
+				return false;
+			}
+			session.detached = true;
+			session.expiry = expiry;
+			handler.detached = true;
+		}
+		handlers.metrics.sessionsDetached.increment();
+		handlers.timers.schedule(expiry, System.nanoTime() + graceNanos);
+		return true;
+	}
+
+	private void expire(Session session, SocketHandler handler) {
+		synchronized (session) {
+			if (session.owner != handler || !session.detached) {
+				return;
+			}
+			session.owner = null;
+		}
+		sessions.remove(session.token);
+		reserved.addAndGet(-session.cost());
+		handlers.metrics.sessionsDetached.decrement();
+		handlers.metrics.sessionsExpired.increment();
+		handlers.forget(handler);
+	}
+
+	int size() {
+		return sessions.size();
+	}
+
+	long bytes() {
+		return reserved.get();
+	}
+}
@@ -2,154 +2,667 @@ package utb.fai;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.*;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class SocketHandler {
 	Socket mySocket;
 	String clientID;
 	volatile String userName = null;
-	Set<String> userRooms = new HashSet<>();
+	// "[name] >> " in UTF-8, prepended to every message this user sends
+	volatile byte[] namePrefix;
+	// Orders the members of rooms, unique for the life of the server
+	private static final AtomicInteger CONNECTION_IDS = new AtomicInteger();
+	final int connectionId = CONNECTION_IDS.incrementAndGet();
+	// Sorted ids from ActiveHandlers.roomIds, an immutable snapshot replaced on join/leave
+	static final int[] NO_ROOMS = new int[0];
+	volatile int[] userRooms = NO_ROOMS;
+	// Scratch space of broadcasts to several rooms, created by the first
+	ActiveHandlers.Merge merge;
+	// The name's id in ActiveHandlers.userIds sent along with the user's messages, 0 until needed, see senderId()
+	volatile int userId;
+	// The name asked of the cluster and reserved here until the answer comes, see ActiveHandlers.setName
+	volatile String claiming;
+	// Set by the handshake, the client then speaks the binary protocol both ways
+	volatile boolean binary = false;
+	// Senders whose name the binary client has been told, guarded by itself
+	private KnownSenders knownSenders;
+	// Set by #compress; the writer creates the compressor once the acknowledgement is out
+	boolean compressing = false;
+	private Frame compressAck;
+	Compressor compressor;
+	// Set by #session or #resume, the writer records its output once recordAfter is out;
+	// detached while the connection is gone but the session kept, see Sessions
+	Sessions.Session session;
+	volatile boolean detached = false;
+	private Frame recordAfter;
+	private boolean recording = false;
 	
 	ActiveHandlers activeHandlers;
-	ArrayBlockingQueue<String> messages = new ArrayBlockingQueue<String>(20);
-	CountDownLatch startSignal = new CountDownLatch(2);
+	OutboundQueue messages;
 	
-	OutputHandler outputHandler = new OutputHandler();
-	InputHandler inputHandler = new InputHandler();
 	volatile boolean inputFinished = false;
+	volatile boolean nameSet = false;
+	final LineSplitter lines = new LineSplitter();
+	// Size of the next read buffer borrowed from ActiveHandlers.buffers, grows while reads fill it
+	private int readSize = BufferPool.MIN;
+	// Per connection rate limits, null when off; checked before anything reaches ActiveHandlers
+	private final TokenBucket lineLimit;
+	private final TokenBucket broadcastLimit;
+	// The limit that dropped the last message, until it lets one through again
+	private TokenBucket limited;
+	// System.nanoTime() of the last input and of the start of the socket write in progress (0 when none)
+	volatile long lastInput = System.nanoTime();
+	volatile long writeStarted = 0;
+	private final long connected = lastInput;
+	// Timeouts on the server's TimingWheel, null when none is configured; pinged is only used on its thread
+	private Timeouts timeouts;
+	private long pinged = connected;
 
 	public SocketHandler(Socket mySocket, ActiveHandlers activeHandlers) {
 		this.mySocket = mySocket;
 		clientID = mySocket.getInetAddress().toString() + ":" + mySocket.getPort();
 		this.activeHandlers = activeHandlers;
+		this.messages = new OutboundQueue(
+				activeHandlers.config.queuePolicyFor(mySocket.getInetAddress().getHostAddress()), activeHandlers.metrics);
+		this.lineLimit = TokenBucket.of(activeHandlers.config.lineRate);
+		this.broadcastLimit = TokenBucket.of(activeHandlers.config.broadcastRate);
 	}
 
-	class OutputHandler implements Runnable {
-		public void run() {
-			OutputStreamWriter writer;
-			try {
-				System.err.println("DBG>Output handler starting for " + clientID);
-				startSignal.countDown();
-				startSignal.await();
-				System.err.println("DBG>Output handler running for " + clientID);
-				
-				writer = new OutputStreamWriter(mySocket.getOutputStream(), "UTF-8");
-				
-				while (!inputFinished) {
-					String m = messages.take();
-					writer.write(m + "\r\n");
-					writer.flush();
-					System.err.println("DBG>Message sent to " + clientID + ":" + m + "\n");
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-			System.err.println("DBG>Output handler for " + clientID + " has finished.");
-		}
-	}
-
-	class InputHandler implements Runnable {
-		public void run() {
-			try {
-				System.err.println("DBG>Input handler starting for " + clientID);
-				startSignal.countDown();
-				startSignal.await();
-				System.err.println("DBG>Input handler running for " + clientID);
-				
-				activeHandlers.add(SocketHandler.this);
-				
-				BufferedReader reader = new BufferedReader(
-					new InputStreamReader(mySocket.getInputStream(), "UTF-8"));
-				
-				String line;
-				boolean nameSet = false;
-				
-				while ((line = reader.readLine()) != null) {
-					line = line.trim();
-					if (line.isEmpty()) continue;
-					
-					System.out.println("Received from " + clientID + ": " + line);
-					
-					if (!nameSet) {
-						String candidate = null;
-						if (line.startsWith("#setMyName")) {
-							String[] parts = line.split("\\s+", 2);
-							if (parts.length == 2) {
-								candidate = parts[1].trim();
-							}
-						} else {
-							candidate = line;
-						}
-						
-						if (candidate != null && activeHandlers.setName(SocketHandler.this, candidate)) {
-							nameSet = true;
-						}
-						continue;
-					}
-					
-					if (line.startsWith("#")) {
-						processCommand(line);
+	/** A handler not bound to a socket, for benchmarks and tools driving ActiveHandlers directly. */
+	SocketHandler(String clientID, ActiveHandlers activeHandlers) {
+		this.clientID = clientID;
+		this.activeHandlers = activeHandlers;
+		this.messages = new OutboundQueue(activeHandlers.config.queuePolicyFor(clientID), activeHandlers.metrics);
+		this.lineLimit = TokenBucket.of(activeHandlers.config.lineRate);
+		this.broadcastLimit = TokenBucket.of(activeHandlers.config.broadcastRate);
+	}
+
+	/** A reply or notice from the server, ahead of anything else waiting. */
+	boolean deliver(Frame message) {
+		return deliver(message, OutboundQueue.Lane.CONTROL);
+	}
+
+	/**
+	 * Room messages skip a stalled client without touching its queue lock,
+	 * unless the client drops its oldest frames: those always take the latest.
+	 */
+	boolean deliver(Frame message, OutboundQueue.Lane lane) {
+		Metrics metrics = activeHandlers.metrics;
+		message = binary ? binary(message) : message.text();
+		if (detached) {
+			return session.record(this, message.buffer());
+		}
+		if (lane == OutboundQueue.Lane.ROOM && messages.isStalled()
+				&& messages.policy.overflow != QueuePolicy.Overflow.DROP_OLDEST) {
+			metrics.skippedStalled.increment();
+			if (messages.stalledTooLong()) {
+				evict();
+			}
+			return false;
+		}
+		switch (messages.offer(message, lane)) {
+			case QUEUED:
+			case DROPPED_OLDEST:
+				messageQueued();
+				return true;
+			case EVICT:
+				evict();
+				return false;
+			default:
+				metrics.droppedNewest.increment();
+				return false;
+		}
+	}
+
+	/** The id to send this user's messages with: acquired with the first one a binary client may see, else 0. */
+	int senderId() {
+		int id = userId;
+		if (id == 0 && userName != null && activeHandlers.binaryClients.get() > 0) {
+			// A rename granted by the cluster finishes on another thread, under this lock
+			synchronized (this) {
+				if (userId == 0 && userName != null) {
+					userId = activeHandlers.userIds.acquire(userName);
+				}
+				id = userId;
+			}
+		}
+		return id;
+	}
+
+	/** The name each sender id stood for when the client was told; an id freed and handed to another name is told again. */
+	private static final class KnownSenders {
+		private String[] names = new String[16];
+
+		boolean told(int id, String name) {
+			return id < names.length && name.equals(names[id]);
+		}
+
+		void tell(int id, String name) {
+			if (id >= names.length) {
+				names = Arrays.copyOf(names, Math.max(id + 1, names.length * 2));
+			}
+			names[id] = name;
+		}
+
+		void tellAll(KnownSenders other) {
+			for (int id = 0; id < other.names.length; id++) {
+				if (other.names[id] != null) {
+					tell(id, other.names[id]);
+				}
+			}
+		}
+	}
+
+	/** The frame in binary, queueing the sender's name first if the client has not seen it. */
+	private Frame binary(Frame message) {
+		Frame frame = message.binary();
+		int sender = frame.sender();
+		if (sender != 0) {
+			synchronized (knownSenders) {
+				// Queued under the lock as a control frame, so no message from the sender can get ahead of it
+				String name = activeHandlers.userIds.name(sender);
+				if (name == null) {
+					name = "";
+				}
+				if (!knownSenders.told(sender, name)) {
+					Frame nameFrame = Frame.binary(Binary.NAME, 0, sender, name);
+					boolean queued;
+					if (detached) {
+						queued = session.record(this, nameFrame.buffer());
 					} else {
-						String formatted = "[" + userName + "] >> " + line;
-						activeHandlers.broadcastToGroups(SocketHandler.this, formatted);
+						OutboundQueue.Offer offer = messages.offer(nameFrame, OutboundQueue.Lane.CONTROL);
+						queued = offer == OutboundQueue.Offer.QUEUED || offer == OutboundQueue.Offer.DROPPED_OLDEST;
+					}
+					// Else the next message from the sender tries again
+					if (queued) {
+						knownSenders.tell(sender, name);
 					}
 				}
-				
-				inputFinished = true;
-				messages.offer("OutputHandler, wakeup and die!");
-				
-			} catch (UnknownHostException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} finally {
-				synchronized (activeHandlers) {
-					activeHandlers.remove(SocketHandler.this);
+			}
+		}
+		return frame;
+	}
+
+	/** Switches both directions to deflate streams after the current input line and its acknowledgement. */
+	void compress() {
+		if (compressing || !activeHandlers.config.compress) {
+			return;
+		}
+		compressing = true;
+		lines.inflate();
+		Frame ack = Frame.of("#compress");
+		compressAck = binary ? ack.binary() : ack;
+		messages.offerBarrier(compressAck);
+		messageQueued();
+	}
+
+	/** Gives the client a token to resume with, and records its output from the reply on. */
+	void startSession() {
+		Sessions sessions = activeHandlers.sessions;
+		if (sessions == null || session != null) {
+			return;
+		}
+		session = sessions.open(this);
+		if (session == null) {
+			deliver(Frame.of("#session unavailable"));
+			return;
+		}
+		Frame ack = Frame.of("#session " + session.token);
+		recordAfter = binary ? ack.binary() : ack;
+		messages.offerBarrier(recordAfter);
+		messageQueued();
+	}
+
+	/** Takes over the name of a resumed session's previous connection and queues what the client missed. */
+	void adopt(SocketHandler previous, Sessions.Session session, byte[] replay) {
+		userId = previous.userId;
+		namePrefix = previous.namePrefix;
+		if (binary && previous.knownSenders != null) {
+			synchronized (previous.knownSenders) {
+				knownSenders.tellAll(previous.knownSenders);
+			}
+		}
+		this.session = session;
+		// The replay is already in the ring, recording goes on after it
+		Frame ack = Frame.of("#resumed");
+		if (replay.length == 0) {
+			recordAfter = binary ? ack.binary() : ack;
+		} else {
+			deliver(ack);
+			recordAfter = Frame.wrap(ByteBuffer.wrap(replay));
+		}
+		messages.offerBarrier(recordAfter);
+		messageQueued();
+		userName = previous.userName;
+	}
+
+	/** Called by the writer before each batch. */
+	void startBatch() {
+		Frame passed = messages.passedBarrier();
+		if (passed == null) {
+			return;
+		}
+		if (passed == compressAck) {
+			compressor = new Compressor(activeHandlers.config, activeHandlers.metrics, activeHandlers.compressBudget);
+		} else if (passed == recordAfter) {
+			recording = true;
+		}
+	}
+
+	/** Called by the writer with each batch before it is compressed. */
+	void record(ByteBuffer[] batch, int n) {
+		if (recording) {
+			session.record(this, batch, n);
+		}
+	}
+
+	/** Whether the limit lets one more through; the client hears about the first drop of a run. */
+	private boolean allowed(TokenBucket limit, LongAdder dropped) {
+		if (limit == null) {
+			return true;
+		}
+		if (limit.tryAcquire()) {
+			if (limited == limit) {
+				limited = null;
+			}
+			return true;
+		}
+		dropped.increment();
+		if (limited != limit) {
+			limited = limit;
+			deliver(Frame.of("Rate limit exceeded, message dropped"));
+		}
+		return false;
+	}
+
+	private final class Timeouts extends TimingWheel.Timeout {
+		@Override
+		long expired(long now) {
+			return checkTimeouts(now);
+		}
+	}
+
+	void watch(TimingWheel timers) {
+		timeouts = new Timeouts();
+		timers.schedule(timeouts, System.nanoTime() + TimingWheel.TICK);
+	}
+
+	void unwatch() {
+		if (timeouts != null) {
+			timeouts.cancel();
+		}
+	}
+
+	/** Closes the connection once one of its timeouts has passed, else returns when to look again (0 never). */
+	private long checkTimeouts(long now) {
+		ServerConfig config = activeHandlers.config;
+		Metrics metrics = activeHandlers.metrics;
+		long wait = Long.MAX_VALUE;
+		if (config.nameTimeout > 0 && userName == null) {
+			long left = connected + TimeUnit.SECONDS.toNanos(config.nameTimeout) - now;
+			if (left <= 0) {
+				return expire("not named in time", metrics.timeoutsName);
+			}
+			wait = Math.min(wait, left);
+		}
+		if (config.writeStallTimeout > 0) {
+			long stall = TimeUnit.SECONDS.toNanos(config.writeStallTimeout);
+			long started = writeStarted;
+			if (started != 0 && now - started >= stall) {
+				return expire("write stalled", metrics.timeoutsWriteStall);
+			}
+			wait = Math.min(wait, started != 0 ? started + stall - now : stall);
+		}
+		long input = lastInput;
+		if (config.idleTimeout > 0) {
+			long left = input + TimeUnit.SECONDS.toNanos(config.idleTimeout) - now;
+			if (left <= 0) {
+				return expire("idle", metrics.timeoutsIdle);
+			}
+			wait = Math.min(wait, left);
+		}
+		if (config.pingInterval > 0 && userName != null) {
+			// Pinged again every interval for as long as it stays silent
+			long interval = TimeUnit.SECONDS.toNanos(config.pingInterval);
+			long left = (pinged - input > 0 ? pinged : input) + interval - now;
+			if (left <= 0) {
+				pinged = now;
+				metrics.pingsSent.increment();
+				deliver(Frame.of("#ping"));
+				left = interval;
+			}
+			wait = Math.min(wait, left);
+		}
+		return wait == Long.MAX_VALUE ? 0 : now + wait;
+	}
+
+	private long expire(String reason, LongAdder counter) {
+		counter.increment();
+		Log.info("Closing %s: %s", clientID, reason);
+		disconnect();
+		return 0;
+	}
+
+	boolean isAdmin() {
+		return userName != null && mySocket != null && activeHandlers.config.admins.contains(userName)
+				&& mySocket.getInetAddress().isLoopbackAddress();
+	}
+
+	/** Hook for transports that must be told about new output. */
+	void messageQueued() {
+	}
+
+	/** Borrows a buffer for the next read, small while the client is quiet. */
+	ByteBuffer readBuffer() {
+		return activeHandlers.buffers.acquire(readSize);
+	}
+
+	/** Returns the buffer of a read of n bytes, once its lines have been handled. */
+	void readDone(ByteBuffer in, int n) {
+		if (n == in.capacity()) {
+			readSize = Math.min(BufferPool.MAX, in.capacity() * 2);
+		} else if (n < in.capacity() / 4) {
+			readSize = Math.max(BufferPool.MIN, in.capacity() / 2);
+		}
+		activeHandlers.buffers.release(in);
+	}
+
+	private void evict() {
+		// Closing the queue first makes sure only one broadcaster counts and disconnects
+		if (messages.close()) {
+			activeHandlers.metrics.evictions.increment();
+			Log.warn("Disconnecting slow consumer %s", clientID);
+			disconnect();
+		}
+	}
+
+	void disconnect() {
+		messages.close();
+		if (mySocket == null) {
+			return;
+		}
+		try {
+			mySocket.close();
+		} catch (IOException e) {
+			Log.warn("Closing %s failed", clientID, e);
+		}
+	}
+
+	private static final byte[] SET_MY_NAME = "#setMyName".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] HANDSHAKE = Binary.HANDSHAKE.getBytes(StandardCharsets.UTF_8);
+	private static final byte[] COMPRESS = "#compress".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] PING = "#ping".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] RESUME = "#resume".getBytes(StandardCharsets.UTF_8);
+
+	/** Handles one line of input, or one frame in binary mode; the bytes are only valid for the duration of the call. */
+	boolean handleLine(byte[] line, int start, int end) {
+		return binary ? handleFrame(line, start, end) : handleText(line, start, end);
+	}
+
+	private boolean handleText(byte[] line, int start, int end) {
+		while (start < end && (line[start] & 0xFF) <= ' ') start++;
+		while (end > start && (line[end - 1] & 0xFF) <= ' ') end--;
+		if (start == end) return true;
+		activeHandlers.metrics.messagesIn.increment();
+		if (!allowed(lineLimit, activeHandlers.metrics.linesLimited)) {
+			return true;
+		}
+		
+		if (Log.traced(clientID)) {
+			Log.debugClient(clientID, "Received from %s: %s", clientID, CommandTable.string(line, start, end));
+		}
+		
+		if (!nameSet) {
+			if (!binary && end - start == HANDSHAKE.length && CommandTable.startsWith(line, start, end, HANDSHAKE)) {
+				knownSenders = new KnownSenders();
+				binary = true;
+				activeHandlers.binaryClients.incrementAndGet();
+				lines.binary();
+				deliver(Frame.of(Binary.HANDSHAKE));
+				return true;
+			}
+			if (end - start == COMPRESS.length && CommandTable.startsWith(line, start, end, COMPRESS)) {
+				compress();
+				return true;
+			}
+			if (end - start == PING.length && CommandTable.startsWith(line, start, end, PING)) {
+				deliver(Frame.of("#pong"));
+				return true;
+			}
+			if (CommandTable.tokenEnd(line, start, end) == start + RESUME.length
+					&& CommandTable.startsWith(line, start, end, RESUME)) {
+				resume(line, start + RESUME.length, end);
+				return true;
+			}
+			String candidate = null;
+			if (CommandTable.tokenEnd(line, start, end) == start + SET_MY_NAME.length
+					&& CommandTable.startsWith(line, start, end, SET_MY_NAME)) {
+				int args = CommandTable.skipSpace(line, start + SET_MY_NAME.length, end);
+				if (args < end) {
+					candidate = CommandTable.string(line, args, end);
 				}
+			} else {
+				candidate = CommandTable.string(line, start, end);
 			}
-			System.err.println("DBG>Input handler for " + clientID + " has finished.");
+			
+			if (candidate != null && activeHandlers.setName(this, candidate)) {
+				nameSet = true;
+			}
+			return true;
 		}
 		
-		private void processCommand(String line) {
-			if (line.startsWith("#setMyName")) {
-				String[] parts = line.split("\\s+", 2);
-				if (parts.length >= 2) {
-					activeHandlers.setName(SocketHandler.this, parts[1].trim());
-				}
-			} else if (line.startsWith("#sendPrivate")) {
-				String[] parts = line.split("\\s+", 3);
-				if (parts.length >= 3) {
-					String targetName = parts[1].trim();
-					String msg = parts[2];
-					String formatted = "[" + userName + "] >> " + msg;
-					activeHandlers.sendPrivate(targetName, formatted, SocketHandler.this);
-				}
-			} else if (line.startsWith("#join")) {
-				String[] parts = line.split("\\s+", 2);
-				if (parts.length >= 2) {
-					String room = parts[1].trim();
-					activeHandlers.joinGroup(room, SocketHandler.this);
-				}
-			} else if (line.startsWith("#leave")) {
-				String[] parts = line.split("\\s+", 2);
-				if (parts.length >= 2) {
-					String room = parts[1].trim();
-					activeHandlers.leaveGroup(room, SocketHandler.this);
-				}
-			} else if (line.equals("#groups")) {
-				Set<String> groups = activeHandlers.groupsOf(SocketHandler.this);
-				if (groups.isEmpty()) {
-					messages.offer("");
+		if (line[start] == '#') {
+			// Unknown commands are ignored
+			activeHandlers.commands.dispatch(this, line, start, end);
+		} else if (allowed(broadcastLimit, activeHandlers.metrics.broadcastsLimited)) {
+			activeHandlers.broadcastToGroups(this, Frame.message(Binary.CHAT, 0, senderId(), namePrefix, line, start, end));
+		}
+		return true;
+	}
+
+	// #resume <token> <count>, instead of a name
+	private void resume(byte[] line, int args, int end) {
+		args = CommandTable.skipSpace(line, args, end);
+		int tokenEnd = CommandTable.tokenEnd(line, args, end);
+		int count = CommandTable.skipSpace(line, tokenEnd, end);
+		try {
+			if (args < tokenEnd && count < end && activeHandlers.resume(this, CommandTable.string(line, args, tokenEnd),
+					Long.parseLong(CommandTable.string(line, count, end)))) {
+				nameSet = true;
+				return;
+			}
+		} catch (NumberFormatException e) {
+			// as any other failed resume
+		}
+		deliver(Frame.of("#resume failed"));
+	}
+
+	// Payloads are copied into the outgoing frame as they are, only names are decoded
+	private boolean handleFrame(byte[] frame, int start, int end) {
+		if (end - start < Binary.HEADER) {
+			return true;
+		}
+		byte opcode = frame[start];
+		int room = Binary.getInt(frame, start + 1);
+		int payload = start + Binary.HEADER;
+		if (opcode == Binary.LINE) {
+			return handleText(frame, payload, end);
+		}
+		activeHandlers.metrics.messagesIn.increment();
+		if (!allowed(lineLimit, activeHandlers.metrics.linesLimited)) {
+			return true;
+		}
+		if (opcode == Binary.NAME) {
+			if (payload < end && activeHandlers.setName(this, CommandTable.string(frame, payload, end))) {
+				nameSet = true;
+			}
+			return true;
+		}
+		if (!nameSet) {
+			return true;
+		}
+		Interner roomIds = activeHandlers.roomIds;
+		String roomName;
+		switch (opcode) {
+			case Binary.CHAT: {
+				if (!allowed(broadcastLimit, activeHandlers.metrics.broadcastsLimited)) {
+					break;
+				}
+				Frame message = Frame.binary(Binary.CHAT, room, senderId(), namePrefix, frame, payload, end);
+				if (room == 0) {
+					activeHandlers.broadcastToGroups(this, message);
+				} else if ((roomName = roomIds.name(room)) != null) {
+					activeHandlers.broadcastToRoom(this, roomName, message);
+				}
+				break;
+			}
+			case Binary.PRIVATE: {
+				int nameEnd = CommandTable.tokenEnd(frame, payload, end);
+				int text = CommandTable.skipSpace(frame, nameEnd, end);
+				if (payload < nameEnd && text < end) {
+					activeHandlers.sendPrivate(CommandTable.string(frame, payload, nameEnd),
+							Frame.binary(Binary.PRIVATE, 0, senderId(), namePrefix, frame, text, end), this);
+				}
+				break;
+			}
+			case Binary.JOIN:
+				roomName = payload < end ? CommandTable.string(frame, payload, end) : roomIds.name(room);
+				if (roomName != null) {
+					activeHandlers.joinGroup(roomName, this);
+					deliver(Frame.binary(Binary.JOIN, roomIds.find(roomName), 0, roomName));
+				}
+				break;
+			case Binary.LEAVE:
+				roomName = payload < end ? CommandTable.string(frame, payload, end) : roomIds.name(room);
+				if (roomName != null) {
+					activeHandlers.leaveGroup(roomName, this);
+				}
+				break;
+			case Binary.GROUPS:
+				deliver(Frame.binary(Binary.GROUPS, 0, 0, String.join(",", activeHandlers.groupsOf(this))));
+				break;
+			default:
+				// Unknown opcodes are ignored like unknown commands
+		}
+		return true;
+	}
+
+	/** Writes the queued output of a blocking connection, on a thread of its own. */
+	void runOutput() {
+		try {
+			Log.debugClient(clientID, "Output handler running for %s", clientID);
+			
+			// The socket comes from a blocking SocketChannel, frames are written straight from the shared buffer
+			SocketChannel channel = mySocket.getChannel();
+			ServerConfig config = activeHandlers.config;
+			BufferPool buffers = activeHandlers.buffers;
+			long lingerNanos = TimeUnit.MICROSECONDS.toNanos(config.lingerMicros);
+			
+			while (!inputFinished) {
+				startBatch();
+				// Block for the first message, then coalesce whatever else is ready within the budget
+				Frame m = messages.take();
+				if (m == null) {
+					break;
+				}
+				ByteBuffer[] batch = buffers.batch();
+				long deadline = System.nanoTime() + lingerNanos;
+				long created = m.created;
+				batch[0] = m.buffer();
+				// Lingering only adds to the batch, every pass drains against what is left of one budget
+				long budget = config.batchBytes - m.length();
+				int n = 1;
+				while (true) {
+					for (int drained = messages.drainTo(batch, n, budget); n < drained; n++) {
+						budget -= batch[n].remaining();
+					}
+					if (lingerNanos <= 0 || n == batch.length || budget <= 0) {
+						break;
+					}
+					long wait = deadline - System.nanoTime();
+					if (wait <= 0 || (m = messages.poll(wait, TimeUnit.NANOSECONDS)) == null) {
+						break;
+					}
+					batch[n++] = m.buffer();
+					budget -= m.length();
+				}
+				long bytes = 0;
+				for (int i = 0; i < n; i++) {
+					bytes += batch[i].remaining();
+				}
+				Log.debugClient(clientID, "%d messages sent to %s", n, clientID);
+				record(batch, n);
+				writeStarted = System.nanoTime();
+				if (compressor != null) {
+					ByteBuffer compressed = compressor.compress(batch, 0, n);
+					while (compressed.hasRemaining()) {
+						channel.write(compressed);
+					}
 				} else {
-					messages.offer(String.join(",", groups));
+					while (batch[n - 1].hasRemaining()) {
+						channel.write(batch, 0, n);
+					}
 				}
+				writeStarted = 0;
+				activeHandlers.metrics.recordBatch(n, bytes);
+				activeHandlers.metrics.recordWritten(created);
+				buffers.release(batch);
 			}
+		} catch (IOException e) {
+			Log.warn("Output handler for %s failed", clientID, e);
+		} catch (InterruptedException e) {
+			Log.warn("Output handler for %s interrupted", clientID);
+		}
+		if (compressor != null) {
+			compressor.end();
 		}
+		Log.debugClient(clientID, "Output handler for %s has finished", clientID);
 	}
-}
\ No newline at end of file
+
+	/** Reads and handles the input of a blocking connection, on a thread of its own. */
+	void runInput() {
+		try {
+			Log.debugClient(clientID, "Input handler running for %s", clientID);
+			
+			activeHandlers.add(this);
+			
+			SocketChannel channel = mySocket.getChannel();
+			LineSplitter.Sink sink = this::handleLine;
+			
+			while (true) {
+				// Blocks holding only the smallest buffer while the client is quiet
+				ByteBuffer in = readBuffer();
+				int n = channel.read(in);
+				if (n < 0) {
+					break;
+				}
+				lastInput = System.nanoTime();
+				in.flip();
+				boolean more = lines.feed(in, sink);
+				readDone(in, n);
+				if (!more) {
+					Log.warn("Line too long or corrupt input from %s, closing", clientID);
+					break;
+				}
+			}
+			lines.finish(sink);
+		} catch (UnknownHostException e) {
+			Log.warn("Input handler for %s failed", clientID, e);
+		} catch (IOException e) {
+			Log.warn("Input handler for %s failed", clientID, e);
+		} finally {
+			// However input ended, the writer is woken up and the socket's descriptor given back
+			inputFinished = true;
+			activeHandlers.remove(this);
+			disconnect();
+		}
+		Log.debugClient(clientID, "Input handler for %s has finished", clientID);
+	}
+}
+
@@ -0,0 +1,195 @@
+package utb.fai;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Renders Metrics together with a snapshot of the connections and rooms as
+ * "name{labels} value" lines, the Prometheus text format. The same lines
+ * answer #stats and the scrape endpoint.
+ */
+final class Stats {
+	static final int TOP = 10;
+
+	private final List<String> lines = new ArrayList<>();
+
+	private Stats() {
+	}
+
+	private static final class Ranked<T> {
+		final T item;
+		final long value;
+
+		Ranked(T item, long value) {
+			this.item = item;
+			this.value = value;
+		}
+	}
+
+	static List<String> lines(ActiveHandlers activeHandlers) {
+		Stats s = new Stats();
+		Metrics m = activeHandlers.metrics;
+		s.add("im_connections{phase=\"pre_name\"}", m.connectionsPreName.sum());
+		s.add("im_connections{phase=\"named\"}", m.connectionsNamed.sum());
+		s.add("im_connections_accepted_total", m.connectionsAccepted.sum());
+		s.add("im_connections_rejected_total{reason=\"full\"}", m.rejectedFull.sum());
+		s.add("im_connections_rejected_total{reason=\"address\"}", m.rejectedAddress.sum());
+		s.add("im_rate_limited_total{kind=\"line\"}", m.linesLimited.sum());
+		s.add("im_rate_limited_total{kind=\"broadcast\"}", m.broadcastsLimited.sum());
+		s.add("im_timeouts_total{reason=\"idle\"}", m.timeoutsIdle.sum());
+		s.add("im_timeouts_total{reason=\"name\"}", m.timeoutsName.sum());
+		s.add("im_timeouts_total{reason=\"write_stall\"}", m.timeoutsWriteStall.sum());
+		s.add("im_pings_sent_total", m.pingsSent.sum());
+		Sessions sessions = activeHandlers.sessions;
+		if (sessions != null) {
+			s.add("im_sessions", sessions.size());
+			s.add("im_sessions_detached", m.sessionsDetached.sum());
+			s.add("im_session_bytes", sessions.bytes());
+		}
+		s.add("im_sessions_opened_total", m.sessionsOpened.sum());
+		s.add("im_sessions_resumed_total", m.sessionsResumed.sum());
+		s.add("im_sessions_expired_total", m.sessionsExpired.sum());
+		s.add("im_messages_in_total", m.messagesIn.sum());
+		s.add("im_messages_in_per_second", m.messagesInRate.perSecond());
+		s.add("im_messages_out_total", m.framesWritten.sum());
+		s.add("im_messages_out_per_second", m.framesWrittenRate.perSecond());
+		s.add("im_bytes_out_total", m.bytesWritten.sum());
+		s.add("im_batches_total", m.batches.sum());
+		s.histogram("im_batch_frames", m.batchFrames);
+		s.histogram("im_fanout", m.fanout);
+		s.histogram("im_write_latency_nanoseconds", m.writeLatency);
+		for (OutboundQueue.Lane lane : OutboundQueue.Lane.values()) {
+			s.histogram("im_queue_latency_nanoseconds", "lane=\"" + lane.name().toLowerCase() + "\"",
+					m.queueLatency[lane.ordinal()]);
+		}
+		s.add("im_buffer_pool_acquired_total", m.buffersAcquired.sum());
+		s.add("im_buffer_pool_allocated_total", m.buffersAllocated.sum());
+		s.add("im_buffer_pool_idle_bytes", activeHandlers.buffers.idleBytes());
+		s.add("im_dropped_total{reason=\"newest\"}", m.droppedNewest.sum());
+		s.add("im_dropped_total{reason=\"oldest\"}", m.droppedOldest.sum());
+		s.add("im_dropped_total{reason=\"stalled\"}", m.skippedStalled.sum());
+		s.add("im_evictions_total", m.evictions.sum());
+		s.add("im_log_dropped_total", Log.dropped.sum());
+		s.add("im_history_appended_total", m.historyAppended.sum());
+		s.add("im_history_dropped_total", m.historyDropped.sum());
+		s.add("im_history_replayed_total", m.historyReplayed.sum());
+		s.add("im_offline_stored_total", m.offlineStored.sum());
+		s.add("im_offline_delivered_total", m.offlineDelivered.sum());
+		s.add("im_offline_evicted_total", m.offlineEvicted.sum());
+		OfflineStore offline = activeHandlers.offline;
+		if (offline != null) {
+			s.add("im_offline_bytes", offline.bytes());
+			s.add("im_offline_users", offline.users());
+		}
+		RoomShards shards = activeHandlers.shards;
+		if (shards != null) {
+			long[] depths = shards.depths();
+			for (int i = 0; i < depths.length; i++) {
+				s.add("im_shard_queue_depth{shard=\"" + i + "\"}", depths[i]);
+			}
+		}
+		s.add("im_compress_bytes_in_total", m.compressBytesIn.sum());
+		s.add("im_compress_bytes_out_total", m.compressBytesOut.sum());
+		s.add("im_compress_nanoseconds_total", m.compressNanos.sum());
+		s.add("im_compress_stored_batches_total", m.compressSkipped.sum());
+		s.add("im_peer_forwarded_total", m.peerForwarded.sum());
+		s.add("im_peer_received_total", m.peerReceived.sum());
+		s.add("im_peer_dropped_total", m.peerDropped.sum());
+		Cluster cluster = activeHandlers.cluster;
+		if (cluster != null) {
+			int up = 0;
+			for (Peer peer : cluster.peers()) {
+				up += peer.isUp() ? 1 : 0;
+			}
+			s.add("im_peers", cluster.peers().size());
+			s.add("im_peers_up", up);
+		}
+		s.add("im_ids{kind=\"room\"}", activeHandlers.roomIds.size());
+		s.add("im_ids{kind=\"user\"}", activeHandlers.userIds.size());
+		s.queues(activeHandlers);
+		s.rooms(activeHandlers);
+		return s.lines;
+	}
+
+	private void queues(ActiveHandlers activeHandlers) {
+		Histogram depths = new Histogram();
+		long maxBytes = 0;
+		PriorityQueue<Ranked<String>> deepest = new PriorityQueue<>(Comparator.comparingLong(r -> r.value));
+		for (SocketHandler handler : activeHandlers.named()) {
+			int depth = handler.messages.size();
+			depths.record(depth);
+			maxBytes = Math.max(maxBytes, handler.messages.bytes());
+			if (depth > 0) {
+				top(deepest, new Ranked<>(handler.userName, depth));
+			}
+		}
+		histogram("im_queue_depth_frames", depths);
+		add("im_queue_depth_bytes_max", maxBytes);
+		for (Ranked<String> r : sorted(deepest)) {
+			add("im_queue_depth_frames_top{client=\"" + escape(r.item) + "\"}", r.value);
+		}
+	}
+
+	private void rooms(ActiveHandlers activeHandlers) {
+		PriorityQueue<Ranked<ActiveHandlers.Room>> busiest = new PriorityQueue<>(Comparator.comparingLong(r -> r.value));
+		int count = 0;
+		for (ActiveHandlers.Room room : activeHandlers.rooms()) {
+			count++;
+			top(busiest, new Ranked<>(room, room.messages.sum()));
+		}
+		add("im_rooms", count);
+		for (Ranked<ActiveHandlers.Room> r : sorted(busiest)) {
+			ActiveHandlers.Room room = r.item;
+			String label = "{room=\"" + escape(room.name) + "\"}";
+			add("im_room_messages_total" + label, r.value);
+			add("im_room_bytes_total" + label, room.bytes.sum());
+			add("im_room_members" + label, room.members.length);
+		}
+	}
+
+	// Keeps the TOP largest entries, the smallest of them at the head
+	private static <T> void top(PriorityQueue<Ranked<T>> queue, Ranked<T> entry) {
+		queue.add(entry);
+		if (queue.size() > TOP) {
+			queue.poll();
+		}
+	}
+
+	private static <T> List<Ranked<T>> sorted(PriorityQueue<Ranked<T>> queue) {
+		List<Ranked<T>> entries = new ArrayList<>();
+		while (!queue.isEmpty()) {
+			entries.add(0, queue.poll());
+		}
+		return entries;
+	}
+
+	private void histogram(String name, Histogram h) {
+		histogram(name, "", h);
+	}
+
+	private void histogram(String name, String labels, Histogram h) {
+		String quantile = labels.isEmpty() ? "{quantile=\"" : "{" + labels + ",quantile=\"";
+		String total = labels.isEmpty() ? "" : "{" + labels + "}";
+		add(name + quantile + "0.5\"}", h.percentile(50));
+		add(name + quantile + "0.99\"}", h.percentile(99));
+		add(name + quantile + "0.999\"}", h.percentile(99.9));
+		add(name + quantile + "1\"}", h.percentile(100));
+		add(name + "_sum" + total, h.sum());
+		add(name + "_count" + total, h.count());
+	}
+
+	private void add(String name, long value) {
+		lines.add(name + " " + value);
+	}
+
+	private void add(String name, double value) {
+		lines.add(name + " " + String.format(Locale.ROOT, "%.1f", value));
+	}
+
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,105 @@
+package utb.fai;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel run by one thread for the timeouts of all
+ * connections. A timeout lives in the slot of its deadline tick, a
+ * singly-linked list threaded through the timeouts themselves; deadlines
+ * more than a turn away just stay in their slot until their turn comes.
+ * Scheduling from other threads goes through a queue the wheel thread
+ * empties every tick, cancelling only marks the timeout, so both are O(1)
+ * and the wheel itself is only ever touched by its own thread.
+ */
+final class TimingWheel implements Runnable {
+	static final long TICK = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final int SLOTS = 512;
+
+	abstract static class Timeout {
+		private long deadline; // in ticks
+		private Timeout next;
+		private volatile boolean cancelled = false;
+
+		/** Runs on the wheel thread; returns the next deadline (System.nanoTime) or 0 to stop. */
+		abstract long expired(long now);
+
+		void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private final Timeout[] slots = new Timeout[SLOTS];
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final long start = System.nanoTime();
+	// The next tick to process, only used by the wheel thread
+	private long tick = 0;
+
+	void start() {
+		Thread t = new Thread(this, "timing-wheel");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Schedules a timeout not currently scheduled; from any thread. */
+	void schedule(Timeout timeout, long deadline) {
+		timeout.deadline = ticks(deadline);
+		added.add(timeout);
+	}
+
+	private long ticks(long deadline) {
+		return Math.max(0, (deadline - start + TICK - 1) / TICK);
+	}
+
+	private void insert(Timeout timeout, long earliest) {
+		long deadline = Math.max(timeout.deadline, earliest);
+		timeout.deadline = deadline;
+		int slot = (int) (deadline & (SLOTS - 1));
+		timeout.next = slots[slot];
+		slots[slot] = timeout;
+	}
+
+	public void run() {
+		while (true) {
+			long now = System.nanoTime();
+			long due = (now - start) / TICK;
+			while (tick <= due) {
+				Timeout t;
+				while ((t = added.poll()) != null) {
+					insert(t, tick);
+				}
+				expire(tick, now);
+				tick++;
+			}
+			LockSupport.parkNanos(start + tick * TICK - System.nanoTime());
+		}
+	}
+
+	private void expire(long current, long now) {
+		int slot = (int) (current & (SLOTS - 1));
+		Timeout t = slots[slot];
+		slots[slot] = null;
+		while (t != null) {
+			Timeout next = t.next;
+			t.next = null;
+			if (t.cancelled) {
+				// dropped
+			} else if (t.deadline > current) {
+				insert(t, current + 1);
+			} else {
+				long deadline = 0;
+				try {
+					deadline = t.expired(now);
+				} catch (RuntimeException e) {
+					Log.error("Timeout failed", e);
+				}
+				if (deadline != 0) {
+					t.deadline = ticks(deadline);
+					insert(t, current + 1);
+				}
+			}
+			t = next;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package utb.fai;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limit as a generic cell rate algorithm: a token bucket whose whole
+ * state is the time at which it will be full again, in one AtomicLong. A
+ * check is a read and a compare-and-set, so it takes constant time and
+ * never locks, however many threads share the bucket.
+ */
+final class TokenBucket {
+	// Nanoseconds per token, and how far ahead of now the bucket may be drawn
+	private final long interval;
+	private final long tolerance;
+	private final AtomicLong fullAt;
+
+	TokenBucket(long perSecond, long burst) {
+		this.interval = Math.max(1, 1_000_000_000L / perSecond);
+		this.tolerance = interval * (Math.max(1, burst) - 1);
+		this.fullAt = new AtomicLong(System.nanoTime());
+	}
+
+	/** Takes a token if there is one. */
+	boolean tryAcquire() {
+		long now = System.nanoTime();
+		while (true) {
+			long full = fullAt.get();
+			long from = full - now > 0 ? full : now;
+			if (from - now > tolerance) {
+				return false;
+			}
+			if (fullAt.compareAndSet(full, from + interval)) {
+				return true;
+			}
+		}
+	}
+
+	/** A bucket for a RATE[:BURST] setting, or null when the rate is 0. */
+	static TokenBucket of(long[] setting) {
+		return setting[0] > 0 ? new TokenBucket(setting[0], setting[1]) : null;
+	}
+}
@@ -0,0 +1,29 @@
+package utb.fai;
+
+/**
+ * A connection without a socket whose deliveries are only counted, so the
+ * benchmarks measure the registry and parsing rather than queueing.
+ */
+final class BenchHandler extends SocketHandler {
+	long delivered;
+
+	BenchHandler(String clientID, ActiveHandlers activeHandlers) {
+		super(clientID, activeHandlers);
+	}
+
+	/** Registers the handler under name, like a client that has sent #setMyName. */
+	static BenchHandler named(String name, ActiveHandlers activeHandlers) {
+		BenchHandler h = new BenchHandler(name, activeHandlers);
+		if (!activeHandlers.setName(h, name)) {
+			throw new IllegalStateException("name taken: " + name);
+		}
+		h.nameSet = true;
+		return h;
+	}
+
+	@Override
+	boolean deliver(Frame message, OutboundQueue.Lane lane) {
+		delivered++;
+		return true;
+	}
+}
@@ -0,0 +1,68 @@
+package utb.fai;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * ActiveHandlers.broadcastToGroups across room sizes. With rooms > 1 the
+ * sender is in several rooms whose members overlap by half, so the
+ * de-duplication path is measured too. Run with -PjmhThreads=N to see how
+ * concurrent senders into the same rooms scale.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+	@Param({ "10", "100", "1000", "5000" })
+	int roomSize;
+
+	@Param({ "1", "4" })
+	int rooms;
+
+	ActiveHandlers activeHandlers;
+	final Frame frame = Frame.of("[sender] >> a message of typical chat length for everybody");
+	final AtomicInteger senders = new AtomicInteger();
+
+	@Setup
+	public void setup() {
+		activeHandlers = new ActiveHandlers();
+		int step = roomSize / 2;
+		int members = step * (rooms - 1) + roomSize;
+		for (int i = 0; i < members; i++) {
+			BenchHandler h = BenchHandler.named("member" + i, activeHandlers);
+			// Member i belongs to every room k with k * step <= i < k * step + roomSize
+			for (int k = 0; k < rooms; k++) {
+				if (i >= k * step && i < k * step + roomSize) {
+					activeHandlers.joinGroup(room(k), h);
+				}
+			}
+		}
+	}
+
+	static String room(int k) {
+		return "room" + k;
+	}
+
+	@State(Scope.Thread)
+	public static class Sender {
+		BenchHandler handler;
+
+		@Setup
+		public void setup(BroadcastBenchmark b) {
+			handler = BenchHandler.named("sender" + b.senders.getAndIncrement(), b.activeHandlers);
+			for (int k = 0; k < b.rooms; k++) {
+				b.activeHandlers.joinGroup(room(k), handler);
+			}
+		}
+	}
+
+	@Benchmark
+	public void broadcast(Sender sender) {
+		activeHandlers.broadcastToGroups(sender.handler, frame);
+	}
+}
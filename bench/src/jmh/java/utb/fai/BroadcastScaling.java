@@ -0,0 +1,116 @@
+package utb.fai;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Broadcast throughput by the number of sending threads. Every sender is in
+ * the same ROOMS rooms of MEMBERS members, so all threads read the same
+ * member snapshots. Members drop what they are given, so what is measured
+ * is the registry rather than queueing. Reports broadcasts per second for
+ * 1, 2, 4 ... threads up to the available processors and the speedup over
+ * one thread; without a lock on the read side it should stay close to the
+ * thread count.
+ * <p>
+ * Run with ./gradlew :bench:scaling; the arguments are seconds per step and
+ * the largest thread count, e.g. 5 16.
+ */
+public class BroadcastScaling {
+	static final int ROOMS = 4;
+	static final int MEMBERS = 1000;
+
+	/** A named member that accepts every message and keeps nothing, so senders share no written state. */
+	private static final class Sink extends SocketHandler {
+		Sink(String name, ActiveHandlers activeHandlers) {
+			super(name, activeHandlers);
+			if (!activeHandlers.setName(this, name)) {
+				throw new IllegalStateException("name taken: " + name);
+			}
+			nameSet = true;
+		}
+
+		@Override
+		boolean deliver(Frame message, OutboundQueue.Lane lane) {
+			return true;
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		List<Integer> steps = new ArrayList<>();
+		for (int t = 1; t < maxThreads; t *= 2) {
+			steps.add(t);
+		}
+		steps.add(maxThreads);
+
+		ActiveHandlers activeHandlers = new ActiveHandlers();
+		for (int i = 0; i < MEMBERS; i++) {
+			Sink member = new Sink("member" + i, activeHandlers);
+			for (int k = 0; k < ROOMS; k++) {
+				activeHandlers.joinGroup("room" + k, member);
+			}
+		}
+		Sink[] senders = new Sink[maxThreads];
+		for (int i = 0; i < maxThreads; i++) {
+			senders[i] = new Sink("sender" + i, activeHandlers);
+			for (int k = 0; k < ROOMS; k++) {
+				activeHandlers.joinGroup("room" + k, senders[i]);
+			}
+		}
+		Frame frame = Frame.of("[sender] >> a message of typical chat length for everybody");
+
+		// One round unmeasured, so the first step does not pay for compilation
+		run(activeHandlers, senders, 1, seconds, frame);
+		double single = 0;
+		System.out.printf("%d rooms of %d members, %d processors%n", ROOMS, MEMBERS + maxThreads,
+				Runtime.getRuntime().availableProcessors());
+		System.out.printf("%7s %14s %16s %8s%n", "threads", "broadcasts/s", "deliveries/s", "speedup");
+		for (int threads : steps) {
+			double rate = run(activeHandlers, senders, threads, seconds, frame);
+			if (threads == 1) {
+				single = rate;
+			}
+			System.out.printf("%7d %14.0f %16.0f %8.2f%n", threads, rate, rate * (MEMBERS + maxThreads - 1),
+					rate / single);
+		}
+	}
+
+	// Broadcasts per second of threads senders running for the given time
+	private static double run(ActiveHandlers activeHandlers, Sink[] senders, int threads, int seconds, Frame frame)
+			throws InterruptedException {
+		LongAdder broadcasts = new LongAdder();
+		CountDownLatch start = new CountDownLatch(1);
+		long[] stop = new long[1];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			Sink sender = senders[t];
+			workers[t] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				long sent = 0;
+				while (System.nanoTime() < stop[0]) {
+					for (int i = 0; i < 100; i++) {
+						activeHandlers.broadcastToGroups(sender, frame);
+					}
+					sent += 100;
+				}
+				broadcasts.add(sent);
+			}, "sender-" + t);
+			workers[t].start();
+		}
+		long began = System.nanoTime();
+		stop[0] = began + TimeUnit.SECONDS.toNanos(seconds);
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		return broadcasts.sum() * 1e9 / (System.nanoTime() - began);
+	}
+}
@@ -0,0 +1,76 @@
+package utb.fai;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Name lookups and renames on the shared registry. Meant to be run with
+ * several threads (-PjmhThreads=N): setNameContended has every thread
+ * fighting over one name, setName has each renaming between its own two.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DirectoryBenchmark {
+	@Param({ "1000" })
+	int users;
+
+	ActiveHandlers activeHandlers;
+	String[] names;
+	final Frame frame = Frame.of("[sender] >> a private message");
+	final AtomicInteger clients = new AtomicInteger();
+
+	@Setup
+	public void setup() {
+		activeHandlers = new ActiveHandlers();
+		names = new String[users];
+		for (int i = 0; i < users; i++) {
+			names[i] = "user" + i;
+			BenchHandler.named(names[i], activeHandlers);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+		BenchHandler handler;
+		String first;
+		String second;
+		boolean renamed;
+		int next;
+
+		@Setup
+		public void setup(DirectoryBenchmark b) {
+			int id = b.clients.getAndIncrement();
+			first = "client" + id;
+			second = "client" + id + "-renamed";
+			handler = BenchHandler.named(first, b.activeHandlers);
+		}
+	}
+
+	@Benchmark
+	public boolean sendPrivate(Client c) {
+		String target = names[c.next];
+		c.next = c.next + 1 == names.length ? 0 : c.next + 1;
+		return activeHandlers.sendPrivate(target, frame, c.handler);
+	}
+
+	@Benchmark
+	public boolean setName(Client c) {
+		c.renamed = !c.renamed;
+		return activeHandlers.setName(c.handler, c.renamed ? c.second : c.first);
+	}
+
+	@Benchmark
+	public boolean setNameContended(Client c) {
+		boolean won = activeHandlers.setName(c.handler, "contended");
+		if (won) {
+			activeHandlers.setName(c.handler, c.first);
+		}
+		return won;
+	}
+}
@@ -0,0 +1,73 @@
+package utb.fai;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Heap held per idle connection. Builds connections without sockets the way
+ * the server sets them up (in "public", named, in one of ROOMS rooms), passes
+ * one message through each queue and reports the heap they keep after a full
+ * collection. The sockets themselves and, in the blocking transport, the
+ * connection's two threads are not counted.
+ * <p>
+ * Run with ./gradlew :bench:footprint, -Ptransport=blocking for the blocking
+ * transport; the arguments are connection counts and the transport, e.g.
+ * 10000 50000 100000 nio.
+ */
+public class Footprint {
+	static final int ROOMS = 100;
+
+	public static void main(String[] args) {
+		String transport = "nio";
+		List<Integer> counts = new ArrayList<>();
+		for (String arg : args) {
+			if (arg.equals("nio") || arg.equals("blocking")) {
+				transport = arg;
+			} else {
+				counts.add(Integer.parseInt(arg));
+			}
+		}
+		if (counts.isEmpty()) {
+			counts = List.of(10_000, 50_000, 100_000);
+		}
+		for (int connections : counts) {
+			System.out.printf("%-8s %7d connections: %6d bytes per connection%n", transport, connections,
+					bytesPerConnection(connections, transport.equals("nio")));
+		}
+	}
+
+	static long bytesPerConnection(int connections, boolean nio) {
+		SocketHandler[] handlers = new SocketHandler[connections];
+		String[] names = new String[connections];
+		for (int i = 0; i < connections; i++) {
+			names[i] = "user" + i;
+		}
+		Frame message = Frame.of("[sender] >> hello");
+		long before = usedHeap();
+		ActiveHandlers activeHandlers = new ActiveHandlers();
+		for (int i = 0; i < connections; i++) {
+			SocketHandler h = nio ? new NioSocketHandler(names[i], activeHandlers)
+					: new SocketHandler(names[i], activeHandlers);
+			activeHandlers.add(h);
+			activeHandlers.setName(h, names[i]);
+			h.nameSet = true;
+			activeHandlers.joinGroup("room" + i % ROOMS, h);
+			h.messages.offer(message, OutboundQueue.Lane.ROOM);
+			h.messages.poll();
+			handlers[i] = h;
+		}
+		long bytes = (usedHeap() - before) / connections;
+		Reference.reachabilityFence(handlers);
+		Reference.reachabilityFence(activeHandlers);
+		return bytes;
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
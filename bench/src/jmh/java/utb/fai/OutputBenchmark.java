@@ -0,0 +1,108 @@
+package utb.fai;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The output path of one connection, without the socket: frames are encoded,
+ * queued, drained in batches of batchFrames and handed to a gathering write,
+ * as SocketHandler.runOutput does. Every invocation moves MESSAGES frames, so scores
+ * are comparable across batch sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OutputBenchmark {
+	static final int MESSAGES = 64;
+
+	@Param({ "1", "16", "64" })
+	int batchFrames;
+
+	@Param({ "48", "512" })
+	int lineBytes;
+
+	Metrics metrics;
+	OutboundQueue queue;
+	ByteBuffer[] batch;
+	CountingChannel channel;
+	byte[] prefix;
+	byte[] body;
+
+	@Setup
+	public void setup() {
+		metrics = new Metrics();
+		queue = new OutboundQueue(QueuePolicy.parse("bytes=" + 4 * MESSAGES * (lineBytes + 64)), metrics);
+		batch = new ByteBuffer[batchFrames];
+		channel = new CountingChannel();
+		prefix = "[sender] >> ".getBytes(StandardCharsets.UTF_8);
+		body = new byte[lineBytes];
+		Arrays.fill(body, (byte) 'x');
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public long encodeAndWrite() {
+		for (int i = 0; i < MESSAGES; i++) {
+			queue.offer(Frame.of(prefix, body, 0, body.length), OutboundQueue.Lane.ROOM);
+		}
+		while (queue.size() > 0) {
+			int n = queue.drainTo(batch, 0, Long.MAX_VALUE);
+			long bytes = 0;
+			for (int i = 0; i < n; i++) {
+				bytes += batch[i].remaining();
+			}
+			while (batch[n - 1].hasRemaining()) {
+				channel.write(batch, 0, n);
+			}
+			metrics.recordBatch(n, bytes);
+			Arrays.fill(batch, 0, n, null);
+		}
+		return channel.written;
+	}
+
+	/** Accepts everything; the bytes are only counted. */
+	static final class CountingChannel implements GatheringByteChannel {
+		long written;
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			long n = 0;
+			for (int i = offset; i < offset + length; i++) {
+				n += srcs[i].remaining();
+				srcs[i].position(srcs[i].limit());
+			}
+			written += n;
+			return n;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			written += n;
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package utb.fai;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The input path of a named connection: LineSplitter over a read buffer
+ * holding a burst of lines, then SocketHandler.handleLine for each. The room
+ * has a single listener, so a chat line costs one frame and one delivery.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+	static final int LINES = 32;
+
+	@Param({ "chat", "sendPrivate", "joinLeave", "groups", "unknown" })
+	String kind;
+
+	BenchHandler handler;
+	LineSplitter splitter;
+	LineSplitter.Sink sink;
+	ByteBuffer input;
+	int length;
+
+	@Setup
+	public void setup() {
+		ActiveHandlers activeHandlers = new ActiveHandlers();
+		handler = BenchHandler.named("sender", activeHandlers);
+		BenchHandler peer = BenchHandler.named("peer", activeHandlers);
+		activeHandlers.joinGroup("public", handler);
+		activeHandlers.joinGroup("public", peer);
+		splitter = new LineSplitter();
+		sink = handler::handleLine;
+
+		StringBuilder burst = new StringBuilder();
+		for (int i = 0; i < LINES; i++) {
+			burst.append(line(i)).append("\r\n");
+		}
+		byte[] bytes = burst.toString().getBytes(StandardCharsets.UTF_8);
+		input = ByteBuffer.allocate(bytes.length);
+		input.put(bytes).flip();
+		length = bytes.length;
+	}
+
+	private String line(int i) {
+		switch (kind) {
+			case "chat":
+				return "hello everybody, this is a line of ordinary chat";
+			case "sendPrivate":
+				return "#sendPrivate peer hello, this one is just for you";
+			case "joinLeave":
+				return (i % 2 == 0 ? "#join " : "#leave ") + "lobby";
+			case "groups":
+				return "#groups";
+			default:
+				return "#nosuchcommand with some arguments";
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public boolean parse() {
+		// feed() leaves the buffer cleared, so every invocation sees the same burst
+		input.limit(length);
+		return splitter.feed(input, sink);
+	}
+}
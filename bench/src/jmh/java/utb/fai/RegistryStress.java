@@ -0,0 +1,210 @@
+package utb.fai;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Joins, leaves, renames and removals racing on one registry, then a check
+ * that it is still consistent. Each worker drives its own CONNECTIONS
+ * connections, one operation at a time as their input threads would, but
+ * all of them share ROOMS rooms and fight over NAMES names; connections are
+ * removed and replaced by new ones as they go, and they broadcast in between.
+ * The first SHARED connections of every worker are never removed, and all
+ * workers join and leave rooms with them, so their own rooms are updated by
+ * several threads at once. Once all workers have stopped:
+ * <ul>
+ * <li>every room has members, an id, and its members sorted, once each, live
+ * and knowing they are in it;</li>
+ * <li>every live connection's rooms are sorted and each has it as a member;</li>
+ * <li>every name leads to the connection holding it, and no other is
+ * registered;</li>
+ * <li>no room or user id is held beyond the rooms that exist.</li>
+ * </ul>
+ * Then every connection is removed, which must leave no room, name or id.
+ * Exits with status 1 when any of that does not hold.
+ * <p>
+ * Run with ./gradlew :bench:registryStress; the arguments are seconds and
+ * worker threads, e.g. 30 8.
+ */
+public class RegistryStress {
+	static final int ROOMS = 16;
+	static final int NAMES = 32;
+	static final int CONNECTIONS = 64;
+	static final int SHARED = 8;
+
+	public static void main(String[] args) throws InterruptedException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		ActiveHandlers activeHandlers = new ActiveHandlers();
+		SocketHandler[][] connections = new SocketHandler[workers][CONNECTIONS];
+		for (int w = 0; w < workers; w++) {
+			for (int i = 0; i < CONNECTIONS; i++) {
+				connections[w][i] = connect(activeHandlers, "w" + w + "-" + i);
+			}
+		}
+		long[][] ops = new long[workers][];
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		Thread[] threads = new Thread[workers];
+		for (int w = 0; w < workers; w++) {
+			int worker = w;
+			threads[w] = new Thread(() -> ops[worker] = work(activeHandlers, worker, connections, deadline),
+					"worker-" + w);
+			threads[w].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		long[] total = new long[5];
+		for (long[] counts : ops) {
+			for (int i = 0; i < total.length; i++) {
+				total[i] += counts[i];
+			}
+		}
+		System.out.printf("%d workers for %d s: %d joins, %d leaves, %d renames, %d removals, %d broadcasts%n",
+				workers, seconds, total[0], total[1], total[2], total[3], total[4]);
+		Set<SocketHandler> live = new HashSet<>();
+		for (SocketHandler[] own : connections) {
+			live.addAll(Arrays.asList(own));
+		}
+		List<String> problems = check(activeHandlers, live);
+		if (problems.isEmpty()) {
+			System.out.printf("Registry consistent: %d connections, %d named, %d rooms%n", live.size(),
+					activeHandlers.named().size(), activeHandlers.rooms().size());
+			for (SocketHandler h : live) {
+				activeHandlers.remove(h);
+			}
+			problems = check(activeHandlers, Set.of());
+			if (!activeHandlers.rooms().isEmpty()) {
+				problems.add(activeHandlers.rooms().size() + " rooms left after every connection was removed");
+			}
+		}
+		if (problems.isEmpty()) {
+			System.out.println("Registry empty after every connection was removed");
+			return;
+		}
+		System.out.printf("Registry inconsistent, %d problems:%n", problems.size());
+		problems.stream().limit(20).forEach(p -> System.out.println("  " + p));
+		System.exit(1);
+	}
+
+	// Joins, leaves, renames, removals and broadcasts done by one worker
+	private static long[] work(ActiveHandlers activeHandlers, int worker, SocketHandler[][] connections,
+			long deadline) {
+		long[] ops = new long[5];
+		SocketHandler[] own = connections[worker];
+		int created = own.length;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Frame frame = Frame.of("[stress] >> hello");
+		while (System.nanoTime() < deadline) {
+			for (int n = 0; n < 1000; n++) {
+				int i = random.nextInt(own.length);
+				SocketHandler h = own[i];
+				int dice = random.nextInt(100);
+				if (dice < 65) {
+					// A quarter of the joins and leaves are another worker's, on a connection it never removes
+					SocketHandler target = random.nextInt(4) > 0 ? h
+							: connections[random.nextInt(connections.length)][random.nextInt(SHARED)];
+					if (dice < 35) {
+						activeHandlers.joinGroup("room" + random.nextInt(ROOMS), target);
+						ops[0]++;
+					} else {
+						activeHandlers.leaveGroup("room" + random.nextInt(ROOMS), target);
+						ops[1]++;
+					}
+				} else if (dice < 80) {
+					// Shared names are contended by every worker, the others are this connection's own
+					String name = random.nextBoolean() ? "name" + random.nextInt(NAMES)
+							: h.clientID + "-" + random.nextInt(2);
+					if (activeHandlers.setName(h, name)) {
+						h.nameSet = true;
+					}
+					ops[2]++;
+				} else if (dice < 85) {
+					if (i < SHARED) {
+						continue;
+					}
+					activeHandlers.remove(h);
+					own[i] = connect(activeHandlers, "w" + worker + "-" + created++);
+					ops[3]++;
+				} else {
+					activeHandlers.broadcastToGroups(h, frame);
+					ops[4]++;
+				}
+			}
+		}
+		return ops;
+	}
+
+	private static SocketHandler connect(ActiveHandlers activeHandlers, String clientID) {
+		SocketHandler h = new BenchHandler(clientID, activeHandlers);
+		activeHandlers.add(h);
+		return h;
+	}
+
+	static List<String> check(ActiveHandlers activeHandlers, Set<SocketHandler> live) {
+		List<String> problems = new ArrayList<>();
+		Map<String, ActiveHandlers.Room> rooms = new HashMap<>();
+		for (ActiveHandlers.Room room : activeHandlers.rooms()) {
+			rooms.put(room.name, room);
+			SocketHandler[] members = room.members;
+			int id = activeHandlers.roomIds.find(room.name);
+			if (members.length == 0) {
+				problems.add("room " + room.name + " kept without members");
+			}
+			if (id == 0) {
+				problems.add("room " + room.name + " has no id");
+			}
+			for (int i = 0; i < members.length; i++) {
+				SocketHandler member = members[i];
+				if (i > 0 && members[i - 1].connectionId >= member.connectionId) {
+					problems.add("room " + room.name + " members out of order or twice at " + i);
+				}
+				if (!live.contains(member)) {
+					problems.add("room " + room.name + " still has removed " + member.clientID);
+				} else if (Arrays.binarySearch(member.userRooms, id) < 0) {
+					problems.add("room " + room.name + " has " + member.clientID + " which is not in it");
+				}
+			}
+		}
+
+		int named = 0;
+		for (SocketHandler h : live) {
+			int[] own = h.userRooms;
+			for (int i = 0; i < own.length; i++) {
+				if (i > 0 && own[i - 1] >= own[i]) {
+					problems.add(h.clientID + " rooms out of order or twice: " + Arrays.toString(own));
+				}
+				String name = activeHandlers.roomIds.name(own[i]);
+				ActiveHandlers.Room room = name == null ? null : rooms.get(name);
+				if (room == null || !Arrays.asList(room.members).contains(h)) {
+					problems.add(h.clientID + " is in room " + name + " (id " + own[i] + ") without being a member");
+				}
+			}
+			if (h.userName != null) {
+				named++;
+				if (activeHandlers.find(h.userName) != h) {
+					problems.add(h.clientID + " named " + h.userName + " but the name leads elsewhere");
+				}
+			}
+		}
+		if (activeHandlers.named().size() != named) {
+			problems.add(activeHandlers.named().size() + " names registered for " + named + " named connections");
+		}
+		if (activeHandlers.roomIds.size() != rooms.size()) {
+			problems.add(activeHandlers.roomIds.size() + " room ids held for " + rooms.size() + " rooms");
+		}
+		if (activeHandlers.userIds.size() != 0) {
+			problems.add(activeHandlers.userIds.size() + " user ids held without binary clients");
+		}
+		return problems;
+	}
+}
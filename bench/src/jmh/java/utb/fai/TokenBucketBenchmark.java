@@ -0,0 +1,36 @@
+package utb.fai;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of one rate limit check. own is the per-connection case, one bucket
+ * per thread; shared has every thread drawing from one bucket, which is
+ * the worst case for the compare-and-set (run with -PjmhThreads=N). The
+ * rate is high enough that checks mostly succeed and keep updating.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenBucketBenchmark {
+	final TokenBucket shared = new TokenBucket(1_000_000_000L, 1_000_000);
+
+	@State(Scope.Thread)
+	public static class Own {
+		final TokenBucket bucket = new TokenBucket(1_000_000_000L, 1_000_000);
+	}
+
+	@Benchmark
+	public boolean own(Own o) {
+		return o.bucket.tryAcquire();
+	}
+
+	@Benchmark
+	public boolean shared() {
+		return shared.tryAcquire();
+	}
+}
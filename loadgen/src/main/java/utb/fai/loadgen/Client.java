@@ -0,0 +1,184 @@
+package utb.fai.loadgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One simulated user on its own connection. The sender stamps every message
+ * with the time it was scheduled to go out rather than when it actually
+ * did, so a generator or server that falls behind cannot hide its queueing
+ * delay; receivers subtract that stamp from the arrival time. All times are
+ * nanoseconds since the shared origin.
+ */
+final class Client {
+	private static final byte[] MARKER = "] >> m ".getBytes(StandardCharsets.US_ASCII);
+	// A send this far behind schedule means the generator itself is saturated
+	private static final long LATE_NANOS = 10_000_000;
+
+	final String name;
+	final int[] rooms;
+	private final long origin;
+	final LatencyHistogram latency = new LatencyHistogram();
+
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+
+	// Each counter has a single writer, the totals are read by the main thread
+	volatile long sent;
+	volatile long received;
+	long sentInWindow;
+	long receivedInWindow;
+	long late;
+	volatile IOException failure;
+	// Only messages stamped within the window are measured, it is set before anybody sends
+	private volatile long windowStart = Long.MAX_VALUE;
+	private volatile long windowEnd = Long.MAX_VALUE;
+
+	Client(String name, int[] rooms, long origin) {
+		this.name = name;
+		this.rooms = rooms;
+		this.origin = origin;
+	}
+
+	void connect(String host, int port) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = socket.getInputStream();
+		out = socket.getOutputStream();
+		StringBuilder setup = new StringBuilder("#setMyName ").append(name).append('\n');
+		if (rooms.length > 0) {
+			setup.append("#leave public\n");
+			for (int room : rooms) {
+				setup.append("#join ").append(LoadGen.room(room)).append('\n');
+			}
+		}
+		// The reply to #groups tells the reader all of the above has been processed
+		setup.append("#groups\n");
+		out.write(setup.toString().getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	void window(long start, long end) {
+		windowStart = start;
+		windowEnd = end;
+	}
+
+	/** Reads until the connection is closed; ready is counted down on the #groups reply. */
+	void receive(CountDownLatch ready) {
+		byte[] buf = new byte[64 * 1024];
+		int filled = 0;
+		boolean isReady = false;
+		try {
+			int n;
+			while ((n = in.read(buf, filled, buf.length - filled)) > 0) {
+				long now = System.nanoTime() - origin;
+				filled += n;
+				int lineStart = 0;
+				for (int i = 0; i < filled; i++) {
+					if (buf[i] != '\n') {
+						continue;
+					}
+					long stamp = stamp(buf, lineStart, i);
+					if (stamp >= 0) {
+						received++;
+						if (stamp >= windowStart && stamp < windowEnd) {
+							receivedInWindow++;
+							latency.record(now - stamp);
+						}
+					} else if (!isReady) {
+						isReady = true;
+						ready.countDown();
+					}
+					lineStart = i + 1;
+				}
+				filled -= lineStart;
+				System.arraycopy(buf, lineStart, buf, 0, filled);
+				if (filled == buf.length) {
+					filled = 0; // never sent by the server, but do not get stuck on it
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	/** The send stamp of "[name] >> m STAMP ...", or -1 for any other line. */
+	private static long stamp(byte[] b, int start, int end) {
+		int i = start;
+		while (i < end && b[i] != ']') {
+			i++;
+		}
+		if (end - i < MARKER.length) {
+			return -1;
+		}
+		for (int j = 0; j < MARKER.length; j++) {
+			if (b[i + j] != MARKER[j]) {
+				return -1;
+			}
+		}
+		long stamp = 0;
+		for (i += MARKER.length; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+			stamp = stamp * 10 + (b[i] - '0');
+		}
+		return stamp;
+	}
+
+	/** Sends one message every interval from start until end. */
+	void send(long start, long interval, long end, int size) {
+		// "m " + 19 digit stamp + " " + padding + "\n"
+		byte[] message = new byte[Math.max(size, 22) + 1];
+		message[0] = 'm';
+		message[1] = ' ';
+		message[21] = ' ';
+		for (int i = 22; i < message.length - 1; i++) {
+			message[i] = 'x';
+		}
+		message[message.length - 1] = '\n';
+		try {
+			for (long next = start; next < end; next += interval) {
+				long now = System.nanoTime() - origin;
+				if (now < next) {
+					LockSupport.parkNanos(next - now);
+				} else if (now - next > LATE_NANOS) {
+					late++;
+				}
+				long stamp = next;
+				for (int i = 20; i >= 2; i--) {
+					message[i] = (byte) ('0' + stamp % 10);
+					stamp /= 10;
+				}
+				out.write(message);
+				sent++;
+				if (next >= windowStart && next < windowEnd) {
+					sentInWindow++;
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	/** Ends the session; the reader sees end of stream instead of a closed socket. */
+	void stop() {
+		try {
+			socket.shutdownOutput();
+			socket.shutdownInput();
+		} catch (IOException e) {
+			// already gone
+		}
+	}
+
+	void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already gone
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package utb.fai.loadgen;
+
+class LoadConfig {
+	enum Distribution {
+		UNIFORM, ZIPF
+	}
+
+	String host = "127.0.0.1";
+	int port = 33000;
+	int clients = 100;
+	// 0 keeps everybody in "public" only
+	int rooms = 0;
+	int roomsPerClient = 1;
+	Distribution distribution = Distribution.UNIFORM;
+	// Messages per second sent by each client
+	double rate = 10;
+	int size = 64;
+	int durationSeconds = 30;
+	int warmupSeconds = 5;
+	int drainSeconds = 5;
+	long seed = 1;
+	String prefix = "load" + ProcessHandle.current().pid() + "-";
+
+	static String usage(LoadConfig defaults) {
+		return String.format("Usage: LoadGen [OPTIONS]\n" +
+				"Options:\n" +
+				"  --host=HOST               server address (default %s)\n" +
+				"  --port=N                  server port (default %d)\n" +
+				"  --clients=N               simulated clients, each on its own connection (default %d)\n" +
+				"  --rooms=N                 rooms to spread the clients over, 0 keeps everybody in public (default %d)\n" +
+				"  --rooms-per-client=N      rooms each client joins (default %d)\n" +
+				"  --distribution=uniform|zipf  how clients pick their rooms (default uniform)\n" +
+				"  --rate=R                  messages per second sent by each client (default %.1f)\n" +
+				"  --size=N                  message body bytes (default %d)\n" +
+				"  --duration=S              seconds of sending, warmup included (default %d)\n" +
+				"  --warmup=S                seconds left out of the report (default %d)\n" +
+				"  --drain=S                 seconds to wait for outstanding deliveries (default %d)\n" +
+				"  --seed=N                  room assignment seed (default %d)\n" +
+				"  --prefix=NAME             client names are NAME0, NAME1, ... (default %s)\n",
+				defaults.host, defaults.port, defaults.clients, defaults.rooms, defaults.roomsPerClient,
+				defaults.rate, defaults.size, defaults.durationSeconds, defaults.warmupSeconds, defaults.drainSeconds,
+				defaults.seed, defaults.prefix);
+	}
+
+	/** Returns null when --help was requested. */
+	static LoadConfig parse(String[] args) {
+		LoadConfig config = new LoadConfig();
+		for (String arg : args) {
+			if (arg.startsWith("--help")) {
+				return null;
+			}
+			config.option(arg);
+		}
+		config.warmupSeconds = Math.min(config.warmupSeconds, config.durationSeconds - 1);
+		return config;
+	}
+
+	private void option(String arg) {
+		int eq = arg.indexOf('=');
+		String name = eq < 0 ? arg.replaceFirst("^--", "") : arg.substring(2, eq);
+		String value = eq < 0 ? "" : arg.substring(eq + 1);
+		try {
+			switch (name) {
+				case "host":
+					host = value;
+					break;
+				case "port":
+					port = Integer.decode(value);
+					break;
+				case "clients":
+					clients = Math.max(2, Integer.decode(value));
+					break;
+				case "rooms":
+					rooms = Math.max(0, Integer.decode(value));
+					break;
+				case "rooms-per-client":
+					roomsPerClient = Math.max(1, Integer.decode(value));
+					break;
+				case "distribution":
+					distribution = Distribution.valueOf(value.toUpperCase());
+					break;
+				case "rate":
+					rate = Math.max(0.001, Double.parseDouble(value));
+					break;
+				case "size":
+					size = Math.max(24, Integer.decode(value));
+					break;
+				case "duration":
+					durationSeconds = Math.max(1, Integer.decode(value));
+					break;
+				case "warmup":
+					warmupSeconds = Math.max(0, Integer.decode(value));
+					break;
+				case "drain":
+					drainSeconds = Math.max(0, Integer.decode(value));
+					break;
+				case "seed":
+					seed = Long.decode(value);
+					break;
+				case "prefix":
+					prefix = value;
+					break;
+				default:
+					System.err.printf("Unknown option %s, ignoring\n", arg);
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.printf("Invalid value in %s, using default value\n", arg);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package utb.fai.loadgen;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens a number of simulated clients against a running server, has them
+ * chat at a fixed rate and reports throughput, end-to-end delivery latency
+ * and how many of the expected deliveries never arrived.
+ */
+public class LoadGen {
+
+	public static void main(String[] args) throws InterruptedException {
+		LoadConfig config = LoadConfig.parse(args);
+		if (config == null) {
+			System.out.print(LoadConfig.usage(new LoadConfig()));
+			return;
+		}
+		System.exit(run(config) ? 0 : 1);
+	}
+
+	static String room(int k) {
+		return "room" + k;
+	}
+
+	static boolean run(LoadConfig config) throws InterruptedException {
+		int[][] rooms = assignRooms(config);
+		long[] fanout = fanout(config, rooms);
+		long origin = System.nanoTime();
+		List<Client> clients = new ArrayList<>();
+		for (int i = 0; i < config.clients; i++) {
+			clients.add(new Client(config.prefix + i, rooms[i], origin));
+		}
+
+		System.out.printf("Connecting %d clients to %s:%d\n", clients.size(), config.host, config.port);
+		CountDownLatch ready = new CountDownLatch(clients.size());
+		List<Thread> readers = new ArrayList<>();
+		for (Client client : clients) {
+			try {
+				client.connect(config.host, config.port);
+			} catch (IOException e) {
+				System.err.printf("Client %s cannot connect: %s\n", client.name, e);
+				clients.forEach(Client::close);
+				return false;
+			}
+			readers.add(Thread.ofVirtual().start(() -> client.receive(ready)));
+		}
+		if (!ready.await(30 + config.clients / 100, TimeUnit.SECONDS)) {
+			System.err.printf("Only %d of %d clients got set up, is MAX_CONNECTIONS of the server large enough?\n",
+					clients.size() - ready.getCount(), clients.size());
+			clients.forEach(Client::close);
+			return false;
+		}
+
+		long interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / config.rate));
+		long start = System.nanoTime() - origin + TimeUnit.MILLISECONDS.toNanos(100);
+		long windowStart = start + TimeUnit.SECONDS.toNanos(config.warmupSeconds);
+		long end = start + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+		System.out.printf("Sending for %d s, the first %d s are warmup\n", config.durationSeconds, config.warmupSeconds);
+		List<Thread> senders = new ArrayList<>();
+		for (Client client : clients) {
+			client.window(windowStart, end);
+			// Spread the clients over the interval instead of sending in lockstep
+			long offset = ThreadLocalRandom.current().nextLong(interval);
+			senders.add(Thread.ofVirtual().start(() -> client.send(start + offset, interval, end, config.size)));
+		}
+		for (Thread sender : senders) {
+			sender.join();
+		}
+
+		long expected = 0;
+		for (int i = 0; i < clients.size(); i++) {
+			expected += clients.get(i).sent * fanout[i];
+		}
+		drain(clients, expected, TimeUnit.SECONDS.toNanos(config.drainSeconds));
+		clients.forEach(Client::stop);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		clients.forEach(Client::close);
+		report(config, clients, expected, end - windowStart);
+		return clients.stream().allMatch(c -> c.failure == null);
+	}
+
+	/** Waits until everything expected has arrived or nothing more came for drainNanos. */
+	private static void drain(List<Client> clients, long expected, long drainNanos) throws InterruptedException {
+		long last = -1;
+		long lastProgress = System.nanoTime();
+		while (true) {
+			long received = received(clients);
+			if (received >= expected) {
+				return;
+			}
+			if (received != last) {
+				last = received;
+				lastProgress = System.nanoTime();
+			} else if (System.nanoTime() - lastProgress >= drainNanos) {
+				return;
+			}
+			Thread.sleep(50);
+		}
+	}
+
+	private static long received(List<Client> clients) {
+		long received = 0;
+		for (Client client : clients) {
+			received += client.received;
+		}
+		return received;
+	}
+
+	private static void report(LoadConfig config, List<Client> clients, long expected, long windowNanos) {
+		LatencyHistogram latency = new LatencyHistogram();
+		long sent = 0, sentInWindow = 0, receivedInWindow = 0, late = 0, failed = 0;
+		for (Client client : clients) {
+			latency.add(client.latency);
+			sent += client.sent;
+			sentInWindow += client.sentInWindow;
+			receivedInWindow += client.receivedInWindow;
+			late += client.late;
+			if (client.failure != null) {
+				failed++;
+			}
+		}
+		long received = received(clients);
+		double seconds = windowNanos / 1e9;
+		System.out.printf("clients=%d rooms=%s rate=%.1f/s size=%d measured=%.0f s\n", clients.size(),
+				config.rooms == 0 ? "public" : config.rooms + "x" + config.roomsPerClient + " "
+						+ config.distribution.toString().toLowerCase(),
+				config.rate, config.size, seconds);
+		System.out.printf("sent       %d (%.0f msg/s measured)\n", sent, sentInWindow / seconds);
+		System.out.printf("delivered  %d of %d expected (%.0f msg/s measured), dropped %d\n", received, expected,
+				receivedInWindow / seconds, Math.max(0, expected - received));
+		System.out.printf("latency ms p50=%.3f p90=%.3f p99=%.3f p999=%.3f max=%.3f mean=%.3f (%d samples)\n",
+				ms(latency.percentile(50)), ms(latency.percentile(90)), ms(latency.percentile(99)),
+				ms(latency.percentile(99.9)), ms(latency.max()), latency.mean() / 1e6, latency.count());
+		if (late > 0) {
+			System.out.printf("warning: %d sends ran over 10 ms behind schedule, the generator is saturated\n", late);
+		}
+		if (failed > 0) {
+			System.out.printf("warning: %d connections failed\n", failed);
+		}
+	}
+
+	private static double ms(long nanos) {
+		return nanos / 1e6;
+	}
+
+	/** The rooms each client joins, none when everybody stays in public. */
+	static int[][] assignRooms(LoadConfig config) {
+		int[][] rooms = new int[config.clients][];
+		if (config.rooms == 0) {
+			for (int i = 0; i < rooms.length; i++) {
+				rooms[i] = new int[0];
+			}
+			return rooms;
+		}
+		Random random = new Random(config.seed);
+		int perClient = Math.min(config.roomsPerClient, config.rooms);
+		// Zipf with exponent 1: room k is picked in proportion to 1 / (k + 1)
+		double[] cumulative = new double[config.rooms];
+		double total = 0;
+		for (int k = 0; k < config.rooms; k++) {
+			total += config.distribution == LoadConfig.Distribution.ZIPF ? 1.0 / (k + 1) : 1.0;
+			cumulative[k] = total;
+		}
+		for (int i = 0; i < rooms.length; i++) {
+			BitSet picked = new BitSet(config.rooms);
+			while (picked.cardinality() < perClient) {
+				double r = random.nextDouble() * total;
+				int k = 0;
+				while (k < config.rooms - 1 && cumulative[k] <= r) {
+					k++;
+				}
+				picked.set(k);
+			}
+			rooms[i] = picked.stream().toArray();
+		}
+		return rooms;
+	}
+
+	/** How many others receive a message sent by each client, as the server sends to the union of rooms. */
+	static long[] fanout(LoadConfig config, int[][] rooms) {
+		long[] fanout = new long[config.clients];
+		if (config.rooms == 0) {
+			Arrays.fill(fanout, config.clients - 1);
+			return fanout;
+		}
+		BitSet[] members = new BitSet[config.rooms];
+		for (int k = 0; k < members.length; k++) {
+			members[k] = new BitSet(config.clients);
+		}
+		for (int i = 0; i < rooms.length; i++) {
+			for (int k : rooms[i]) {
+				members[k].set(i);
+			}
+		}
+		for (int i = 0; i < rooms.length; i++) {
+			BitSet union = new BitSet(config.clients);
+			for (int k : rooms[i]) {
+				union.or(members[k]);
+			}
+			fanout[i] = union.cardinality() - 1;
+		}
+		return fanout;
+	}
+}